@@ -0,0 +1,66 @@
+package paxoskv.jmh;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Commit throughput and latency percentiles of an in-process cluster, the JMH counterpart of
+ * "java PaxosBenchmark cluster". Each trial gets a fresh cluster, shut down fully before the next one starts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(32)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ClusterBenchmark {
+    @Param({"3", "5", "7"})
+    public int numServers;
+
+    @Param({"16", "1024"})
+    public int valueSize;
+
+    // share of commands sent to some other server than the usual one, each of those duels for the leadership
+    @Param({"0.0", "0.1", "0.5"})
+    public double conflictRate;
+
+    private Object[] cluster;
+    private String value;
+    private final AtomicInteger nextKey = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        cluster = PaxosKv.startCluster(numServers);
+        value = "v".repeat(valueSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        PaxosKv.stopCluster(cluster);
+    }
+
+    // mostly to server 0, to a random other server at conflictRate; false if the command failed
+    @Benchmark
+    public boolean put() throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int target = random.nextDouble() < conflictRate ? 1 + random.nextInt(numServers - 1) : 0;
+        return PaxosKv.commit(cluster, target, "PUT key" + nextKey.getAndIncrement() + " " + value);
+    }
+}
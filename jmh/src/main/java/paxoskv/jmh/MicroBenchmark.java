@@ -0,0 +1,58 @@
+package paxoskv.jmh;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Command parsing, message encoding and the storage engines, the JMH counterpart of "java PaxosBenchmark micro".
+ * The task names are the keys of PaxosBenchmark.microBenchmarks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MicroBenchmark {
+    @Param({"Operation.createOperation", "codec.framePut16B", "codec.framePut1KB", "codec.framePutBatch",
+            "codec.framePutGet1KB", "Operation.encode1KB", "HeapKVStore.put100B", "HeapKVStore.get100B",
+            "MappedKVStore.put100B", "MappedKVStore.get100B"})
+    public String task;
+
+    private final List<Closeable> resources = new ArrayList<>();
+    private IntFunction<Object> run;
+    private int i;
+
+    @Setup
+    public void setup() throws Exception {
+        run = PaxosKv.microBenchmarks(resources).get(task);
+        if (run == null) throw new IllegalArgumentException("unknown task " + task);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        for (Closeable resource : resources) resource.close();
+        resources.clear();
+    }
+
+    @Benchmark
+    public Object run() {
+        return run.apply(i++);
+    }
+}
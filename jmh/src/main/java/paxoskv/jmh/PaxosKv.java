@@ -0,0 +1,68 @@
+package paxoskv.jmh;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Reaches PaxosBenchmark, whose classes sit in the default package, which JMH benchmarks can't be in and code in
+ * a package can't import from. Its public methods only take JDK types, so reflection is all that is needed; the
+ * methods are looked up once, when this class loads, and each call is a Method.invoke.
+ */
+final class PaxosKv {
+    private static final Class<?> BENCHMARK = load("PaxosBenchmark");
+    private static final Method START_CLUSTER = method("startCluster", int.class);
+    private static final Method COMMIT = method("commit", Object[].class, int.class, String.class);
+    private static final Method STOP_CLUSTER = method("stopCluster", Object[].class);
+    private static final Method MICRO_BENCHMARKS = method("microBenchmarks", List.class);
+
+    private PaxosKv() {
+    }
+
+    static Object[] startCluster(int numServers) throws Exception {
+        return (Object[]) call(START_CLUSTER, numServers);
+    }
+
+    // measured with every commit: one Method.invoke with its argument array and boxing, a few tens of nanoseconds
+    // next to a consensus round trip of tens of microseconds or more
+    static boolean commit(Object[] cluster, int serverIndex, String command) throws Exception {
+        return (Boolean) call(COMMIT, cluster, serverIndex, command);
+    }
+
+    static void stopCluster(Object[] cluster) throws Exception {
+        call(STOP_CLUSTER, (Object) cluster);
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, IntFunction<Object>> microBenchmarks(List<Closeable> resources) throws Exception {
+        return (Map<String, IntFunction<Object>>) call(MICRO_BENCHMARKS, resources);
+    }
+
+    private static Object call(Method method, Object... args) throws Exception {
+        try {
+            return method.invoke(null, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Exception cause) throw cause;
+            throw e;
+        }
+    }
+
+    private static Method method(String name, Class<?>... types) {
+        try {
+            return BENCHMARK.getMethod(name, types);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("PaxosBenchmark has no " + name, e);
+        }
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("paxos-kv is not on the class path", e);
+        }
+    }
+}
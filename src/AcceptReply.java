@@ -7,6 +7,8 @@ public class AcceptReply implements Serializable {
 
     // if not, attach higher num for re-propose
     int promisedNum;
+    // the round is older than the acceptor's snapshot, the proposer is behind and should install one
+    boolean compacted;
     public AcceptReply(boolean ack, int promisedNum){
         this.ack = ack;
         this.promisedNum = promisedNum;
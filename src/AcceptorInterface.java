@@ -11,4 +11,7 @@ public interface AcceptorInterface extends Remote {
   PromiseMsg promise(int round, int proposalId) throws RemoteException;
 
   AcceptReply accept(int round, int proposalId, Operation proposalValue) throws RemoteException;
+
+  // highest round this acceptor accepted a value in, a majority of these bounds every chosen round
+  int maxAcceptedRound() throws RemoteException;
 }
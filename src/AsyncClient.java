@@ -0,0 +1,137 @@
+import java.rmi.RemoteException;
+import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking client, any number of commands can be in flight at once. Every write carries this client's id and a
+ * sequence number, so when a call fails it is retried with the same number and the servers answer the retry from
+ * their session table instead of applying the command twice. Over NIO all requests share the peer's one connection,
+ * over RMI each request in flight takes a thread of the client.
+ */
+public class AsyncClient {
+    // tries per command, retries go out after RETRY_DELAY_MS
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 100;
+
+    private final ServerInterface server;
+    private final long clientId;
+    private final AtomicLong nextSeq = new AtomicLong(1);
+    // sequence numbers sent and not answered yet, the lowest one is what the servers may forget below
+    private final ConcurrentSkipListSet<Long> unanswered = new ConcurrentSkipListSet<>();
+    // runs blocking calls when the server isn't reached through NIO, null otherwise
+    private final ExecutorService blockingCalls;
+
+    public AsyncClient(ServerInterface server) {
+        this.server = server;
+        long id;
+        do {
+            id = new SecureRandom().nextLong();
+        } while (id == 0);
+        this.clientId = id;
+        if (server instanceof NioPeer) {
+            blockingCalls = null;
+        } else {
+            blockingCalls = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "async-client");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * Parse and run a command without waiting for the result, see submit(Operation, boolean).
+     *
+     * @param command A command in the CLI syntax of Operation.createOperation, "STALE " in front of a read skips
+     *                the quorum check.
+     */
+    public CompletableFuture<Result> submit(String command) {
+        boolean stale = command.startsWith("STALE ");
+        Operation operation = Operation.createOperation(stale ? command.substring("STALE ".length()) : command);
+        if (operation == null) return CompletableFuture.completedFuture(Result.failed(Result.ErrorCode.INVALID_INPUT));
+        return submit(operation, stale);
+    }
+
+    /**
+     * Run an operation without waiting for the result.
+     * The future fails with a RemoteException if the server couldn't be reached in MAX_ATTEMPTS tries.
+     *
+     * @param operation The operation, fresh from Operation.createOperation.
+     * @param stale     Whether a read may use the server's local copy without checking with a quorum.
+     */
+    public CompletableFuture<Result> submit(Operation operation, boolean stale) {
+        // reads don't need a log slot, and being idempotent they need no sequence number either
+        if (operation.isRead()) return withRetries(() -> query(operation, stale));
+        if (stale) return CompletableFuture.completedFuture(Result.failed(Result.ErrorCode.INVALID_INPUT));
+
+        long seq = nextSeq.getAndIncrement();
+        unanswered.add(seq);
+        operation.clientId = clientId;
+        operation.seq = seq;
+        return withRetries(() -> {
+            // recomputed on every try, earlier commands may have been answered meanwhile
+            operation.ackSeq = lowestUnanswered();
+            return sendCommand(operation);
+        }).whenComplete((result, e) -> unanswered.remove(seq));
+    }
+
+    /**
+     * The server's metrics as text, see PaxosMetrics. Blocks, it is meant for people looking at a server.
+     */
+    public String dumpMetrics() throws RemoteException {
+        return server.dumpMetrics();
+    }
+
+    private long lowestUnanswered() {
+        Long lowest = unanswered.ceiling(0L);
+        return lowest != null ? lowest : nextSeq.get();
+    }
+
+    private CompletableFuture<Result> sendCommand(Operation operation) {
+        if (server instanceof NioPeer peer) return peer.sendCommandAsync(operation);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return server.sendCommand(operation);
+            } catch (RemoteException e) {
+                throw new CompletionException(e);
+            }
+        }, blockingCalls);
+    }
+
+    private CompletableFuture<Result> query(Operation query, boolean stale) {
+        if (server instanceof NioPeer peer) return peer.queryAsync(query, stale);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return server.query(query, stale);
+            } catch (RemoteException e) {
+                throw new CompletionException(e);
+            }
+        }, blockingCalls);
+    }
+
+    private CompletableFuture<Result> withRetries(Supplier<CompletableFuture<Result>> call) {
+        CompletableFuture<Result> result = new CompletableFuture<>();
+        attempt(call, MAX_ATTEMPTS, result);
+        return result;
+    }
+
+    private void attempt(Supplier<CompletableFuture<Result>> call, int attemptsLeft, CompletableFuture<Result> result) {
+        call.get().whenComplete((response, e) -> {
+            if (e == null) {
+                result.complete(response);
+            } else if (attemptsLeft > 1) {
+                CompletableFuture.delayedExecutor(RETRY_DELAY_MS, TimeUnit.MILLISECONDS)
+                        .execute(() -> attempt(call, attemptsLeft - 1, result));
+            } else {
+                result.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+            }
+        });
+    }
+}
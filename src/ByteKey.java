@@ -0,0 +1,29 @@
+import java.io.Serializable;
+import java.util.Arrays;
+
+// byte[] compares by identity, this wraps a key to compare it by content in hash maps, and orders keys by
+// their unsigned bytes in sorted ones
+public final class ByteKey implements Serializable, Comparable<ByteKey> {
+    final byte[] bytes;
+    private final int hash;
+
+    public ByteKey(byte[] bytes) {
+        this.bytes = bytes;
+        this.hash = Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ByteKey other && hash == other.hash && Arrays.equals(bytes, other.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public int compareTo(ByteKey other) {
+        return Arrays.compareUnsigned(bytes, other.bytes);
+    }
+}
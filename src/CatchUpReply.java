@@ -0,0 +1,17 @@
+import java.io.Serializable;
+
+// chosen values of consecutive rounds, sent to a server that fell behind
+public class CatchUpReply implements Serializable {
+    // round of values[0]
+    int fromRound;
+    Operation[] values;
+    // round of the peer's stored snapshot, set instead of values when the requested rounds are already compacted;
+    // fetch it with LearnerInterface.fetchSnapshot
+    int snapshotRound;
+
+    public CatchUpReply(int fromRound, Operation[] values, int snapshotRound){
+        this.fromRound = fromRound;
+        this.values = values;
+        this.snapshotRound = snapshotRound;
+    }
+}
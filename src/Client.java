@@ -1,34 +1,117 @@
+import java.nio.charset.StandardCharsets;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.util.Scanner;
+import java.util.concurrent.CompletionException;
 
 public class Client {
-  private final ServerInterface server;
+  private final AsyncClient client;
   public Client(String host, int port) throws Exception {
+    this(host, port, false);
+  }
+
+  public Client(String host, int port, boolean nio) throws Exception {
+    if (nio) {
+      client = new AsyncClient(new NioPeer(host, port));
+      return;
+    }
     String url = "rmi://" + host + ":" + port + "/KVStore";
-    server = (ServerInterface) Naming.lookup(url);
+    client = new AsyncClient((ServerInterface) Naming.lookup(url));
   }
 
   public String performTask(String operation){
+    // "STALE GET key" reads the server's local copy without checking with a quorum
+    // "METRICS" shows the server's latencies, counters and gauges
+    if (operation.equals("METRICS")) {
+      try {
+        return client.dumpMetrics();
+      } catch (RemoteException e) {
+        return e.getMessage();
+      }
+    }
+    boolean stale = operation.startsWith("STALE ");
+    if (stale) operation = operation.substring("STALE ".length());
+    Operation operationObj = Operation.createOperation(operation);
+    if(operationObj == null) return "Invalid Input";
     try{
-      Operation operationObj = Operation.createOperation(operation);
-      if(operationObj == null) return "Invalid Input";
-      return server.sendCommand(operationObj);
-    } catch (RemoteException e){
-      return e.getMessage();
+      return describe(operationObj, client.submit(operationObj, stale).join());
+    } catch (CompletionException e){
+      return e.getCause().getMessage();
     }
   }
 
+  // the text shown for the result of an operation
+  private static String describe(Operation operation, Result result){
+    String key = operation.key == null ? null : text(operation.key);
+    switch (result.status()){
+      case NOT_FOUND:
+        return "Key " + key + " Not found in the store";
+      case FAILED:
+        switch (result.error()){
+          case NO_MAJORITY:
+            return "cannot communicate with majority";
+          case OUTCOME_UNKNOWN:
+            return "Outcome unknown, the server skipped the round by installing a snapshot";
+          case ALREADY_ANSWERED:
+            return "Request was already answered";
+          case CONDITION_FAILED:
+            return "Condition failed, nothing was written";
+          case CROSS_GROUP:
+            return "Keys of one write must belong to the same group";
+          default:
+            return "Invalid Input";
+        }
+      default:
+        switch (operation.type){
+          case Operation.PUT:
+            return "Successfully put the key " + key + " of value " + text(operation.value);
+          case Operation.DELETE:
+            return "Successfully deleted the key " + key;
+          case Operation.MPUT:
+            return "Successfully put " + operation.batch.size() + " keys";
+          case Operation.TXN:
+            return "Transaction applied";
+          case Operation.CONFIG:
+            return "Members changed to " + operation.configuration(0).describe();
+          case Operation.MGET:
+          case Operation.SCAN:
+            return describeEntries(operation, result);
+          default:
+            return "The value of key " + key + " is " + text(result.value());
+        }
+    }
+  }
+
+  // one line per key, MGET keys come from the operation and SCAN keys from the result
+  private static String describeEntries(Operation operation, Result result){
+    StringBuilder sb = new StringBuilder();
+    byte[][] values = result.values();
+    for (int i = 0; i < values.length; i++) {
+      String key = text(result.keys() != null ? result.keys()[i] : operation.batch.get(i).key);
+      if (sb.length() > 0) sb.append('\n');
+      sb.append(values[i] == null ? "Key " + key + " Not found in the store" : key + " = " + text(values[i]));
+    }
+    if (result.next() != null) {
+      if (sb.length() > 0) sb.append('\n');
+      sb.append("More keys from ").append(text(result.next()));
+    }
+    return sb.length() == 0 ? "No keys in the range" : sb.toString();
+  }
+
+  private static String text(byte[] bytes){
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
 
   public static void main(String[] args) throws Exception {
-    if(args.length != 2){
-      System.err.println("Usage: java KeyValueStoreClient <hostname> <port>");
+    if(args.length != 2 && !(args.length == 3 && (args[2].equals("rmi") || args[2].equals("nio")))){
+      System.err.println("Usage: java KeyValueStoreClient <hostname> <port> [rmi|nio]");
       System.exit(1);
     }
     String hostName = args[0];
     int port = Integer.parseInt(args[1]);
 
-    Client keyValueStoreClient = new Client(hostName, port);
+    Client keyValueStoreClient = new Client(hostName, port, args.length == 3 && args[2].equals("nio"));
 
     Scanner scanner = new Scanner(System.in);
     String operation;
@@ -0,0 +1,45 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+// what the state machine remembers about one client, so a retried command is answered instead of applied again
+public class ClientSession implements Serializable {
+    // every sequence number below this has been answered and acknowledged by the client
+    long ackSeq;
+    // responses to commands at or above ackSeq, by sequence number
+    final Map<Long, Result> responses = new HashMap<>();
+
+    // forget responses the client confirmed it got
+    void acknowledge(long seq) {
+        if (seq <= ackSeq) return;
+        ackSeq = seq;
+        responses.keySet().removeIf(s -> s < seq);
+    }
+
+    ClientSession copy() {
+        ClientSession res = new ClientSession();
+        res.ackSeq = ackSeq;
+        res.responses.putAll(responses);
+        return res;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeLong(ackSeq);
+        out.writeInt(responses.size());
+        for (Map.Entry<Long, Result> entry : responses.entrySet()) {
+            out.writeLong(entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+    }
+
+    public static ClientSession readFrom(DataInput in) throws IOException {
+        ClientSession res = new ClientSession();
+        res.ackSeq = in.readLong();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) res.responses.put(in.readLong(), Result.readFrom(in));
+        return res;
+    }
+}
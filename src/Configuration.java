@@ -0,0 +1,97 @@
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The servers whose votes count in the rounds from fromRound on, until the next configuration takes over.
+ * A CONFIG command applied in round r starts a new configuration at round r + Server.CONFIG_WINDOW, so every
+ * server that knows the log up to a round also knows who votes in the next CONFIG_WINDOW rounds.
+ *
+ * Quorums are flexible: a ballot needs q1 promises and a value q2 accepts, any q1 + q2 > members works since
+ * every phase 1 quorum then meets every phase 2 quorum. Phase 1 is rare under a stable leader, so a big q1 buys
+ * a small q2 for every commit. Witnesses are members that vote in both phases and keep the accepted values,
+ * but apply no commands and hold no key-value data; they never lead and never serve reads themselves.
+ */
+public class Configuration implements Serializable {
+    private static final int[] NO_WITNESSES = new int[0];
+
+    // first round this configuration votes in
+    final int fromRound;
+    // server ids, ascending
+    final int[] members;
+    // members without data, ascending
+    final int[] witnesses;
+    // promises a ballot needs and accepts a value needs
+    final int q1;
+    final int q2;
+
+    public Configuration(int fromRound, int[] members) {
+        this(fromRound, members, NO_WITNESSES, 0, 0);
+    }
+
+    /**
+     * Constructor to create a Configuration, checking that its quorums intersect.
+     *
+     * @param fromRound First round the configuration votes in.
+     * @param members   Server ids that vote, distinct and not negative.
+     * @param witnesses The members that keep no data, at least one member must not be a witness.
+     * @param q1        Promises a ballot needs, 0 for a majority.
+     * @param q2        Accepts a value needs, 0 for a majority.
+     * @throws IllegalArgumentException If the members or witnesses are malformed or q1 + q2 doesn't exceed the
+     *                                  number of members.
+     */
+    public Configuration(int fromRound, int[] members, int[] witnesses, int q1, int q2) {
+        this.fromRound = fromRound;
+        this.members = sortedIds(members, "member");
+        this.witnesses = sortedIds(witnesses, "witness");
+        int n = this.members.length;
+        if (n == 0) throw new IllegalArgumentException("a configuration needs members");
+        for (int witness : this.witnesses) {
+            if (!contains(witness)) throw new IllegalArgumentException("witness " + witness + " is no member");
+        }
+        if (this.witnesses.length == n) throw new IllegalArgumentException("every member is a witness, nobody keeps the data");
+        this.q1 = q1 == 0 ? n / 2 + 1 : q1;
+        this.q2 = q2 == 0 ? n / 2 + 1 : q2;
+        if (this.q1 < 1 || this.q1 > n || this.q2 < 1 || this.q2 > n) {
+            throw new IllegalArgumentException("quorums " + this.q1 + "/" + this.q2 + " don't fit " + n + " members");
+        }
+        if (this.q1 + this.q2 <= n) {
+            throw new IllegalArgumentException("quorums " + this.q1 + "/" + this.q2 + " of " + n
+                    + " members don't intersect, q1 + q2 must exceed the number of members");
+        }
+    }
+
+    public boolean contains(int serverId) {
+        return Arrays.binarySearch(members, serverId) >= 0;
+    }
+
+    public boolean isWitness(int serverId) {
+        return Arrays.binarySearch(witnesses, serverId) >= 0;
+    }
+
+    // replies that meet every phase 2 quorum, so one of them saw each chosen round
+    public int readQuorum() {
+        return members.length - q2 + 1;
+    }
+
+    // members, witnesses and quorum sizes, like "[0, 1, 2] witnesses [2] quorums 3/1"
+    public String describe() {
+        return Arrays.toString(members) + (witnesses.length == 0 ? "" : " witnesses " + Arrays.toString(witnesses))
+                + " quorums " + q1 + "/" + q2;
+    }
+
+    @Override
+    public String toString() {
+        return describe() + " from round " + fromRound;
+    }
+
+    // ascending copy, distinct and not negative
+    private static int[] sortedIds(int[] ids, String what) {
+        int[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            if (sorted[i] < 0) throw new IllegalArgumentException("no server id " + sorted[i]);
+            if (i > 0 && sorted[i] == sorted[i - 1]) throw new IllegalArgumentException(what + " " + sorted[i] + " given twice");
+        }
+        return sorted;
+    }
+}
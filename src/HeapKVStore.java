@@ -0,0 +1,42 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+// KVStoreInterface on the heap, the default engine
+public class HeapKVStore implements KVStoreInterface {
+    private final ConcurrentHashMap<ByteKey, byte[]> map = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] get(byte[] key) {
+        return map.get(new ByteKey(key));
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        map.put(new ByteKey(key), value);
+    }
+
+    @Override
+    public boolean delete(byte[] key) {
+        return map.remove(new ByteKey(key)) != null;
+    }
+
+    @Override
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        map.forEach((key, value) -> action.accept(key.bytes, value));
+    }
+
+    @Override
+    public long size() {
+        return map.size();
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+    }
+
+    @Override
+    public void close() {
+        map.clear();
+    }
+}
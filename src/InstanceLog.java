@@ -0,0 +1,130 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * The paxos instances of the rounds from start on, in a ring buffer indexed by round. Round r lives in slot
+ * r & (capacity - 1), so a lookup is one array read, and the slots of compacted rounds are reused by later ones.
+ * The ring doubles when a round doesn't fit in front of start.
+ *
+ * Concurrency: creating an instance, growing and removing take the log's own lock. get and forEach take no lock;
+ * they see every instance created before they began and may or may not see ones created meanwhile. The fields of
+ * an instance keep their own guards, see PaxosInstance.
+ */
+public class InstanceLog {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final IntFunction<PaxosInstance> factory;
+    private final ReentrantLock lock = new ReentrantLock();
+    // replaced as a whole when growing, a reader keeps using the array it read
+    private volatile AtomicReferenceArray<PaxosInstance> slots = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    // lowest round kept, only moves forward
+    private volatile int start;
+    // one past the highest round ever created, bounds iteration
+    private volatile int end;
+    // number of instances kept
+    private volatile int size;
+
+    /**
+     * @param factory Creates the instance of a round that has none yet.
+     */
+    public InstanceLog(IntFunction<PaxosInstance> factory) {
+        this.factory = factory;
+    }
+
+    // the instance of the round, null if it has none or the round was removed
+    public PaxosInstance get(int round) {
+        if (round < start) return null;
+        AtomicReferenceArray<PaxosInstance> ring = slots;
+        PaxosInstance instance = ring.get(round & (ring.length() - 1));
+        // the slot may hold an older or newer round that maps to the same index
+        return instance != null && instance.round == round ? instance : null;
+    }
+
+    /**
+     * The instance of the round, created if it has none. A round below start gets a fresh instance that isn't
+     * kept, so a caller still working on a compacted round changes nothing here.
+     */
+    public PaxosInstance getOrCreate(int round) {
+        PaxosInstance instance = get(round);
+        if (instance != null) return instance;
+        lock.lock();
+        try {
+            if (round < start) return factory.apply(round);
+            if (round - start >= slots.length()) grow(round);
+            int index = round & (slots.length() - 1);
+            instance = slots.get(index);
+            if (instance != null && instance.round == round) return instance;
+            instance = factory.apply(round);
+            slots.set(index, instance);
+            size++;
+            if (round >= end) end = round + 1;
+            return instance;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove every round below round and move start up to it.
+     *
+     * @param round   The new start.
+     * @param removed Called with each removed instance, may be null.
+     */
+    public void removeBefore(int round, Consumer<PaxosInstance> removed) {
+        lock.lock();
+        try {
+            if (round <= start) return;
+            AtomicReferenceArray<PaxosInstance> ring = slots;
+            int mask = ring.length() - 1;
+            int stop = Math.min(round, end);
+            for (int r = start; r < stop; r++) {
+                PaxosInstance instance = ring.get(r & mask);
+                if (instance == null || instance.round != r) continue;
+                ring.set(r & mask, null);
+                size--;
+                if (removed != null) removed.accept(instance);
+            }
+            start = round;
+            if (end < round) end = round;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // every instance kept, in round order
+    public void forEach(Consumer<PaxosInstance> action) {
+        AtomicReferenceArray<PaxosInstance> ring = slots;
+        int mask = ring.length() - 1;
+        int stop = end;
+        for (int r = start; r < stop; r++) {
+            PaxosInstance instance = ring.get(r & mask);
+            if (instance != null && instance.round == r) action.accept(instance);
+        }
+    }
+
+    public int start() {
+        return start;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // double until round fits in front of start, needs lock
+    private void grow(int round) {
+        AtomicReferenceArray<PaxosInstance> old = slots;
+        int capacity = old.length();
+        while (round - start >= capacity) {
+            if (capacity >= 1 << 30) throw new IllegalStateException("round " + round + " is too far ahead of " + start);
+            capacity <<= 1;
+        }
+        AtomicReferenceArray<PaxosInstance> ring = new AtomicReferenceArray<>(capacity);
+        for (int i = 0; i < old.length(); i++) {
+            PaxosInstance instance = old.get(i);
+            if (instance != null && instance.round >= start) ring.set(instance.round & (capacity - 1), instance);
+        }
+        slots = ring;
+    }
+}
@@ -1,9 +1,97 @@
-import java.rmi.Remote;
-import java.rmi.RemoteException;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.PriorityQueue;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
-public interface KVStoreInterface extends Remote {
-  void put(String key, String value) throws RemoteException;
-  String delete(String key) throws RemoteException;
-  String get(String key) throws RemoteException;
-}
+/**
+ * The replicated state machine's key-value storage, local to one server. Keys and values are raw bytes.
+ * Writes come from one thread at a time, the one applying the log, reads may run concurrently with them.
+ */
+public interface KVStoreInterface extends Closeable {
+  // null if the key is absent
+  byte[] get(byte[] key);
+
+  void put(byte[] key, byte[] value);
+
+  // whether the key was present
+  boolean delete(byte[] key);
+
+  // every entry, may miss or show writes that happen during the iteration, but sees each key at most once
+  void forEach(BiConsumer<byte[], byte[]> action);
+
+  /**
+   * Entries with keys from from (inclusive) up to to (exclusive) in unsigned byte order. Like forEach it may miss
+   * or show writes that happen during the scan, hold off writes for a consistent view. This one passes over every
+   * entry and keeps no more than limit keys on the heap, engines with a sorted index override it.
+   *
+   * @param from   First key of the range.
+   * @param to     End of the range, null for no end.
+   * @param limit  Most entries passed to action.
+   * @param action Gets every entry of the range in key order.
+   */
+  default void scan(byte[] from, byte[] to, int limit, BiConsumer<byte[], byte[]> action) {
+    ByteKey start = new ByteKey(from);
+    ByteKey end = to == null ? null : new ByteKey(to);
+    if (limit <= 0 || end != null && start.compareTo(end) >= 0) return;
+    // the smallest keys of the range found so far, the largest of them on top
+    PriorityQueue<ByteKey> smallest = new PriorityQueue<>(Collections.reverseOrder());
+    forEach((key, value) -> {
+      ByteKey candidate = new ByteKey(key);
+      if (candidate.compareTo(start) < 0 || end != null && candidate.compareTo(end) >= 0) return;
+      if (smallest.size() == limit) {
+        if (candidate.compareTo(smallest.peek()) >= 0) return;
+        smallest.poll();
+      }
+      smallest.add(candidate);
+    });
+    ByteKey[] keys = new ByteKey[smallest.size()];
+    for (int i = keys.length - 1; i >= 0; i--) keys[i] = smallest.poll();
+    for (ByteKey key : keys) {
+      byte[] value = get(key.bytes);
+      // deleted since the pass saw it
+      if (value != null) action.accept(key.bytes, value);
+    }
+  }
 
+  long size();
+
+  /**
+   * Stream every entry into a snapshot, in the format Snapshot describes, without the end mark. This one writes
+   * what forEach hands out, so it holds no more of the store on the heap than forEach does; like forEach it may
+   * show writes that happen meanwhile, which the caller corrects through captured.
+   *
+   * @param out      Gets the entries.
+   * @param captured The value a key had when the snapshot was captured if it changed since, Snapshot.ABSENT if it
+   *                 had none, null if it didn't change.
+   */
+  default void writeSnapshot(DataOutput out, Function<byte[], byte[]> captured) throws IOException {
+    try {
+      forEach((key, value) -> {
+        byte[] before = captured.apply(key);
+        if (before == Snapshot.ABSENT) return;
+        try {
+          Snapshot.writeEntry(out, key, before != null ? before : value);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  // put the entries of a snapshot, streamed from in up to the end mark
+  default void readSnapshot(DataInput in) throws IOException {
+    Snapshot.readEntries(in, this::put);
+  }
+
+  void clear();
+
+  @Override
+  void close();
+}
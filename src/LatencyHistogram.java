@@ -0,0 +1,87 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed buckets, recording allocates nothing and takes no lock, so it can sit on the hot path
+ * of every round. Values are kept in microseconds; every power of two is split into SUB_BUCKETS linear buckets, so a
+ * percentile is off by at most a quarter of the value. Anything beyond MAX_MICROS lands in the last bucket.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // about 67 seconds
+    private static final long MAX_MICROS = (1L << 26) - 1;
+    private static final int BUCKETS = bucketOf(MAX_MICROS) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Record one latency.
+     *
+     * @param nanos The latency in nanoseconds, negative values count as 0.
+     */
+    public void record(long nanos) {
+        long micros = Math.min(Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0), MAX_MICROS);
+        counts.incrementAndGet(bucketOf(micros));
+        count.increment();
+        totalMicros.add(micros);
+        long max;
+        while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+            // lost the race to another recorder, look again
+        }
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long meanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalMicros.sum() / n;
+    }
+
+    public long maxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * The latency the given share of the recorded values is at or below, as the upper end of its bucket.
+     *
+     * @param quantile Between 0 and 1, e.g. 0.99.
+     * @return Microseconds, 0 if nothing was recorded.
+     */
+    public long percentileMicros(double quantile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) total += counts.get(i);
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            // a bucket's upper end can't be above the largest value actually recorded
+            if (seen >= rank) return Math.min(lowerBound(i + 1) - 1, maxMicros.get());
+        }
+        return maxMicros.get();
+    }
+
+    // bucket of a value in microseconds: values below SUB_BUCKETS get one each, after that SUB_BUCKETS per power of two
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // smallest value in microseconds that falls into the bucket
+    private static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+}
@@ -0,0 +1,16 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * The LeaderInterface covers leader election within a Paxos group. The server holding the leader ballot sends
+ * heartbeats to the others, and they pass client commands on to it instead of proposing with ballots of their own.
+ */
+public interface LeaderInterface extends Remote {
+
+  // sign of life from the leader of ballot, returns the highest ballot this server promised for the rounds ahead,
+  // a higher one tells the leader it has been replaced
+  int heartbeat(int ballot) throws RemoteException;
+
+  // a command passed on by a follower, proposed here and never forwarded again
+  Result forwardCommand(Operation operation) throws RemoteException;
+}
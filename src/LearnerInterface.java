@@ -9,4 +9,21 @@ import java.rmi.RemoteException;
 public interface LearnerInterface extends Remote {
 
   void learn(int round, int proposalId, Operation acceptedValue) throws RemoteException;
+
+  // rounds a proposer got chosen, values[i] was chosen in round fromRound + i, null entries are not included
+  void learnChosen(int fromRound, Operation[] values) throws RemoteException;
+
+  // chosen values of up to maxRounds consecutive rounds starting at fromRound, or a snapshot if they are compacted
+  CatchUpReply fetchChosen(int fromRound, int maxRounds) throws RemoteException;
+
+  /**
+   * Part of the latest stored snapshot of the state machine. If round isn't the round of the stored snapshot any
+   * more, the chunk starts a newer one at offset 0 and the caller has to start over.
+   *
+   * @param round    Round of the snapshot being copied, 0 to start with the latest.
+   * @param offset   Position in it to continue from.
+   * @param maxBytes Most bytes returned.
+   * @return The chunk, with round 0 if no snapshot was taken yet.
+   */
+  SnapshotChunk fetchSnapshot(int round, long offset, int maxBytes) throws RemoteException;
 }
@@ -0,0 +1,207 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Checks that a history of PUTs and GETs is linearizable, every key read and written like a register that starts
+ * out absent. Keys are independent, so each key's operations are checked on their own, with the search of Wing and
+ * Gong as improved by Lowe: linearize operations in real-time order, backtrack when a completed operation can't
+ * be placed, and never revisit a set of linearized operations that left the register with the same value.
+ * A write whose outcome is unknown may take effect at any point after it was invoked, or never.
+ */
+public class LinearizabilityChecker {
+    // completion time of an operation whose outcome is unknown
+    public static final long NEVER = Long.MAX_VALUE;
+    // states explored per key before giving up on it
+    private static final int MAX_STATES = 1_000_000;
+
+    // one operation of a history
+    public static class Call {
+        final String key;
+        final boolean write;
+        // written, or read with null for absent
+        final String value;
+        final long invoked;
+        final long completed;
+
+        /**
+         * Constructor to create a Call.
+         *
+         * @param key       The key operated on.
+         * @param write     A PUT if true, a GET otherwise.
+         * @param value     The value put, or the one the GET returned, null if it found nothing.
+         * @param invoked   When the client sent it, in nanoseconds.
+         * @param completed When the client got the answer, NEVER for a write whose outcome is unknown.
+         */
+        public Call(String key, boolean write, String value, long invoked, long completed) {
+            this.key = key;
+            this.write = write;
+            this.value = value;
+            this.invoked = invoked;
+            this.completed = completed;
+        }
+
+        @Override
+        public String toString() {
+            return (write ? "PUT " : "GET ") + key + (write ? " " : " -> ") + value + " [" + invoked + ", "
+                    + (completed == NEVER ? "unknown" : completed) + "]";
+        }
+    }
+
+    /**
+     * Check a history.
+     *
+     * @param history Operations in any order.
+     * @return null if the history is linearizable, otherwise what is wrong with which key.
+     */
+    public static String check(List<Call> history) {
+        Map<String, List<Call>> byKey = new LinkedHashMap<>();
+        for (Call call : history) {
+            // an unanswered read tells nothing
+            if (!call.write && call.completed == NEVER) continue;
+            byKey.computeIfAbsent(call.key, k -> new ArrayList<>()).add(call);
+        }
+        for (Map.Entry<String, List<Call>> entry : byKey.entrySet()) {
+            String problem = checkKey(entry.getValue());
+            if (problem != null) return "key " + entry.getKey() + ": " + problem;
+        }
+        return null;
+    }
+
+    // an invocation or a completion in the doubly linked list of events
+    private static class Event {
+        final Call call;
+        final int id;
+        // the completion of an invocation, null for completions
+        Event match;
+        Event prev;
+        Event next;
+
+        Event(Call call, int id) {
+            this.call = call;
+            this.id = id;
+        }
+
+        boolean isInvocation() {
+            return match != null;
+        }
+
+        // take the invocation and its completion out of the list
+        void lift() {
+            prev.next = next;
+            if (next != null) next.prev = prev;
+            match.prev.next = match.next;
+            if (match.next != null) match.next.prev = match.prev;
+        }
+
+        // put them back where they were, in reverse order of lift
+        void unlift() {
+            match.prev.next = match;
+            if (match.next != null) match.next.prev = match;
+            prev.next = this;
+            if (next != null) next.prev = this;
+        }
+    }
+
+    // what a set of linearized operations left behind, cached so the search never repeats it
+    private static class State {
+        final BitSet linearized;
+        final String value;
+
+        State(BitSet linearized, String value) {
+            this.linearized = linearized;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof State other && linearized.equals(other.linearized) && Objects.equals(value, other.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return linearized.hashCode() * 31 + Objects.hashCode(value);
+        }
+    }
+
+    private static String checkKey(List<Call> calls) {
+        List<Event> events = new ArrayList<>(calls.size() * 2);
+        for (int i = 0; i < calls.size(); i++) {
+            Event invocation = new Event(calls.get(i), i);
+            Event completion = new Event(calls.get(i), i);
+            invocation.match = completion;
+            events.add(invocation);
+            events.add(completion);
+        }
+        // by time, invocations first on a tie so touching operations count as concurrent
+        events.sort((a, b) -> {
+            long ta = a.isInvocation() ? a.call.invoked : a.call.completed;
+            long tb = b.isInvocation() ? b.call.invoked : b.call.completed;
+            if (ta != tb) return Long.compare(ta, tb);
+            return Boolean.compare(!a.isInvocation(), !b.isInvocation());
+        });
+        Event head = new Event(null, -1);
+        Event last = head;
+        for (Event event : events) {
+            last.next = event;
+            event.prev = last;
+            last = event;
+        }
+
+        BitSet linearized = new BitSet(calls.size());
+        String value = null;
+        Set<State> seen = new HashSet<>();
+        // invocations linearized so far with the value before each
+        Deque<Event> stack = new ArrayDeque<>();
+        // null for absent, which ArrayDeque doesn't hold
+        List<String> values = new ArrayList<>();
+        int deepest = 0;
+        Call stuck = null;
+        Event event = head.next;
+        while (head.next != null) {
+            if (event.isInvocation()) {
+                Call call = event.call;
+                if (call.write || Objects.equals(call.value, value)) {
+                    String next = call.write ? call.value : value;
+                    BitSet withCall = (BitSet) linearized.clone();
+                    withCall.set(event.id);
+                    if (seen.add(new State(withCall, next))) {
+                        if (seen.size() > MAX_STATES) return "gave up after " + MAX_STATES + " states, not checked";
+                        stack.push(event);
+                        values.add(value);
+                        linearized = withCall;
+                        value = next;
+                        event.lift();
+                        event = head.next;
+                        continue;
+                    }
+                }
+                event = event.next;
+            } else {
+                // an operation that completed here had to be linearized by now, undo the latest choice
+                if (stack.size() >= deepest) {
+                    deepest = stack.size();
+                    stuck = event.call;
+                }
+                if (stack.isEmpty()) {
+                    return "not linearizable, after placing " + deepest + " of " + calls.size()
+                            + " operations nothing explains " + stuck;
+                }
+                Event undone = stack.pop();
+                value = values.remove(values.size() - 1);
+                linearized = (BitSet) linearized.clone();
+                linearized.clear(undone.id);
+                undone.unlift();
+                event = undone.next;
+            }
+        }
+        return null;
+    }
+}
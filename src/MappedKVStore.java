@@ -0,0 +1,455 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * KVStoreInterface for datasets larger than the heap. Entries are appended to memory-mapped segment files as
+ * [int keyLength][int valueLength][key][value], and an open-addressing hash index in two primitive arrays points
+ * at the latest record of every key, so the heap only holds 12 bytes per key plus a bounded cache of hot entries.
+ * There is no sorted index, a scan is a pass over every entry (see KVStoreInterface.scan).
+ * Overwritten and deleted records are dead space, a sealed segment that is mostly dead gets its live records
+ * copied to the active segment and is deleted.
+ * The files are scratch space, the server rebuilds the store from its snapshot and log after a restart.
+ */
+public class MappedKVStore implements KVStoreInterface {
+    public static final int DEFAULT_SEGMENT_SIZE = 32 * 1024 * 1024;
+    public static final long DEFAULT_CACHE_BYTES = 16 * 1024 * 1024;
+    // a sealed segment is compacted once this share of it is dead
+    private static final double COMPACT_RATIO = 0.5;
+    private static final int RECORD_HEADER = 2 * Integer.BYTES;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double MAX_LOAD = 0.7;
+    // slots forEach copies per lock hold
+    private static final int ITERATION_CHUNK = 4096;
+
+    private final Path dir;
+    private final int segmentSize;
+    private final HotCache cache;
+
+    // index slot i is empty if locations[i] == 0, else holds location + 1 and the key's hash; a key's home slot is
+    // the top bits of its hash, so the home slots keep the order of the hashes whatever the table size
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private long[] locations = new long[INITIAL_CAPACITY];
+    private int count;
+
+    // by segment id, null once deleted
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment active;
+
+    // many readers or the one writer, readers only touch bytes the writer is done with
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private static final class Segment {
+        final int id;
+        final Path file;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        int writePos;
+        // bytes of records the index still points at
+        long liveBytes;
+
+        Segment(int id, Path file, MappedByteBuffer buffer, int capacity) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+            this.capacity = capacity;
+        }
+    }
+
+    public MappedKVStore(Path dir) {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * Open an empty store, segment files left over in dir are deleted.
+     *
+     * @param dir         Directory for the segment files.
+     * @param segmentSize Size of one segment file, a larger record gets a segment of its own.
+     * @param cacheBytes  Most key and value bytes held in the hot-entry cache.
+     */
+    public MappedKVStore(Path dir, int segmentSize, long cacheBytes) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.cache = new HotCache(cacheBytes);
+        try {
+            Files.createDirectories(dir);
+            deleteSegmentFiles();
+            active = newSegment(segmentSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot create store in " + dir, e);
+        }
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        byte[] cached = cache.get(key);
+        if (cached != null) return cached;
+        lock.readLock().lock();
+        try {
+            int slot = find(key, hash(key));
+            if (slot < 0) return null;
+            long location = locations[slot] - 1;
+            Segment segment = segments.get(segmentOf(location));
+            int offset = offsetOf(location);
+            byte[] value = new byte[segment.buffer.getInt(offset + Integer.BYTES)];
+            segment.buffer.get(offset + RECORD_HEADER + key.length, value);
+            // under the read lock, so no writer can change the key before the cache has it
+            cache.put(key, value);
+            return value;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        lock.writeLock().lock();
+        try {
+            long location = append(key, value);
+            int hash = hash(key);
+            int slot = find(key, hash);
+            if (slot >= 0) {
+                Segment old = release(locations[slot] - 1);
+                locations[slot] = location + 1;
+                maybeCompact(old);
+            } else {
+                insert(hash, location);
+            }
+            cache.replace(key, value);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(byte[] key) {
+        lock.writeLock().lock();
+        try {
+            int slot = find(key, hash(key));
+            if (slot < 0) return false;
+            Segment old = release(locations[slot] - 1);
+            removeSlot(slot);
+            cache.remove(key);
+            maybeCompact(old);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // walks the home slots in chunks and remembers how far by hash value rather than by slot, every hash below
+    // reportedBelow is done; a resize between two chunks keeps that a prefix of the table, so no key comes up twice
+    @Override
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        List<byte[]> entries = new ArrayList<>();
+        long reportedBelow = 0;
+        while (reportedBelow < 1L << Integer.SIZE) {
+            lock.readLock().lock();
+            try {
+                int length = locations.length;
+                int shift = homeShift(length);
+                int mask = length - 1;
+                int first = (int) (reportedBelow >>> shift);
+                int last = Math.min(length, first + ITERATION_CHUNK);
+                // an entry sits at its home slot or after it with no empty slot in between, possibly wrapped around
+                for (int i = first; i < last || locations[i & mask] != 0; i++) {
+                    int slot = i & mask;
+                    if (locations[slot] == 0) continue;
+                    int home = hashes[slot] >>> shift;
+                    if (home < first || home >= last) continue;
+                    long location = locations[slot] - 1;
+                    Segment segment = segments.get(segmentOf(location));
+                    int offset = offsetOf(location);
+                    byte[] key = new byte[segment.buffer.getInt(offset)];
+                    byte[] value = new byte[segment.buffer.getInt(offset + Integer.BYTES)];
+                    segment.buffer.get(offset + RECORD_HEADER, key);
+                    segment.buffer.get(offset + RECORD_HEADER + key.length, value);
+                    entries.add(key);
+                    entries.add(value);
+                }
+                reportedBelow = (long) last << shift;
+            } finally {
+                lock.readLock().unlock();
+            }
+            // outside the lock, the action may take its time
+            for (int i = 0; i < entries.size(); i += 2) action.accept(entries.get(i), entries.get(i + 1));
+            entries.clear();
+        }
+    }
+
+    @Override
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments) {
+                if (segment != null) Files.deleteIfExists(segment.file);
+            }
+            segments.clear();
+            hashes = new int[INITIAL_CAPACITY];
+            locations = new long[INITIAL_CAPACITY];
+            count = 0;
+            cache.clear();
+            active = newSegment(segmentSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot clear store in " + dir, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments) {
+                if (segment != null) Files.deleteIfExists(segment.file);
+            }
+            segments.clear();
+            cache.clear();
+        } catch (IOException e) {
+            System.out.println("cannot delete store files in " + dir + ": " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // write a record to the active segment, rolling to a new one if it doesn't fit, needs the write lock
+    private long append(byte[] key, byte[] value) {
+        int length = RECORD_HEADER + key.length + value.length;
+        if (active.writePos + length > active.capacity) {
+            try {
+                active = newSegment(Math.max(segmentSize, length));
+            } catch (IOException e) {
+                throw new UncheckedIOException("cannot add a segment to store in " + dir, e);
+            }
+        }
+        int offset = active.writePos;
+        active.buffer.putInt(offset, key.length);
+        active.buffer.putInt(offset + Integer.BYTES, value.length);
+        active.buffer.put(offset + RECORD_HEADER, key);
+        active.buffer.put(offset + RECORD_HEADER + key.length, value);
+        active.writePos += length;
+        active.liveBytes += length;
+        return (long) active.id << 32 | offset;
+    }
+
+    // the record at location is dead from now on, returns its segment
+    private Segment release(long location) {
+        Segment segment = segments.get(segmentOf(location));
+        segment.liveBytes -= recordLength(segment, offsetOf(location));
+        return segment;
+    }
+
+    // copy the live records of a mostly dead sealed segment to the active one and drop it, needs the write lock
+    private void maybeCompact(Segment segment) {
+        if (segment == active || segment.liveBytes > segment.writePos * (1 - COMPACT_RATIO)) return;
+        int offset = 0;
+        while (offset < segment.writePos) {
+            int length = recordLength(segment, offset);
+            byte[] key = new byte[segment.buffer.getInt(offset)];
+            segment.buffer.get(offset + RECORD_HEADER, key);
+            int slot = find(key, hash(key));
+            // live if the index still points here
+            if (slot >= 0 && locations[slot] - 1 == ((long) segment.id << 32 | offset)) {
+                byte[] value = new byte[segment.buffer.getInt(offset + Integer.BYTES)];
+                segment.buffer.get(offset + RECORD_HEADER + key.length, value);
+                locations[slot] = append(key, value) + 1;
+            }
+            offset += length;
+        }
+        segments.set(segment.id, null);
+        try {
+            // the mapping stays valid until it is garbage collected, the space is freed then
+            Files.deleteIfExists(segment.file);
+        } catch (IOException e) {
+            System.out.println("cannot delete segment " + segment.file + ": " + e.getMessage());
+        }
+    }
+
+    private Segment newSegment(int capacity) throws IOException {
+        int id = segments.size();
+        Path file = dir.resolve(String.format("%010d.seg", id));
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(capacity);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        Segment segment = new Segment(id, file, buffer, capacity);
+        segments.add(segment);
+        return segment;
+    }
+
+    private void deleteSegmentFiles() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.seg")) {
+            for (Path file : files) Files.delete(file);
+        }
+    }
+
+    // slot holding the key, or -1, needs a lock
+    private int find(byte[] key, int hash) {
+        int mask = locations.length - 1;
+        for (int slot = home(hash, locations.length); locations[slot] != 0; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && keyEquals(locations[slot] - 1, key)) return slot;
+        }
+        return -1;
+    }
+
+    private void insert(int hash, long location) {
+        if (count + 1 > locations.length * MAX_LOAD) resize();
+        int mask = locations.length - 1;
+        int slot = home(hash, locations.length);
+        while (locations[slot] != 0) slot = (slot + 1) & mask;
+        hashes[slot] = hash;
+        locations[slot] = location + 1;
+        count++;
+    }
+
+    // empty the slot and shift later entries of the probe sequence back, so lookups need no tombstones
+    private void removeSlot(int slot) {
+        int mask = locations.length - 1;
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (locations[next] == 0) break;
+            int home = home(hashes[next], locations.length);
+            // an entry can fill the hole unless its home slot lies cyclically after the hole, up to next
+            boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (stays) continue;
+            hashes[hole] = hashes[next];
+            locations[hole] = locations[next];
+            hole = next;
+        }
+        locations[hole] = 0;
+        count--;
+    }
+
+    private void resize() {
+        int[] oldHashes = hashes;
+        long[] oldLocations = locations;
+        hashes = new int[oldLocations.length * 2];
+        locations = new long[oldLocations.length * 2];
+        int mask = locations.length - 1;
+        for (int i = 0; i < oldLocations.length; i++) {
+            if (oldLocations[i] == 0) continue;
+            int slot = home(oldHashes[i], locations.length);
+            while (locations[slot] != 0) slot = (slot + 1) & mask;
+            hashes[slot] = oldHashes[i];
+            locations[slot] = oldLocations[i];
+        }
+    }
+
+    // slot a hash starts probing at in a table of length slots, its top bits
+    private static int home(int hash, int length) {
+        return hash >>> homeShift(length);
+    }
+
+    private static int homeShift(int length) {
+        return Integer.numberOfLeadingZeros(length) + 1;
+    }
+
+    private boolean keyEquals(long location, byte[] key) {
+        Segment segment = segments.get(segmentOf(location));
+        int offset = offsetOf(location);
+        if (segment.buffer.getInt(offset) != key.length) return false;
+        int start = offset + RECORD_HEADER;
+        for (int i = 0; i < key.length; i++) {
+            if (segment.buffer.get(start + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    private static int recordLength(Segment segment, int offset) {
+        return RECORD_HEADER + segment.buffer.getInt(offset) + segment.buffer.getInt(offset + Integer.BYTES);
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    // murmur3 style mixing, spreads similar keys over the table
+    private static int hash(byte[] key) {
+        int h = 0x9747b28c;
+        for (byte b : key) {
+            h ^= b;
+            h *= 0x5bd1e995;
+            h ^= h >>> 15;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    // least recently used entries go first once the cache holds more than maxBytes of keys and values
+    private static final class HotCache {
+        private final long maxBytes;
+        private long bytes;
+        private final LinkedHashMap<ByteKey, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        HotCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized byte[] get(byte[] key) {
+            return entries.get(new ByteKey(key));
+        }
+
+        synchronized void put(byte[] key, byte[] value) {
+            // too big to cache, but an older value of the key must not stay behind
+            if (key.length + value.length > maxBytes) {
+                remove(key);
+                return;
+            }
+            byte[] old = entries.put(new ByteKey(key), value);
+            bytes += value.length - (old == null ? -key.length : old.length);
+            Iterator<Map.Entry<ByteKey, byte[]>> eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<ByteKey, byte[]> entry = eldest.next();
+                bytes -= entry.getKey().bytes.length + entry.getValue().length;
+                eldest.remove();
+            }
+        }
+
+        // update a cached key, keys that aren't cached stay out
+        synchronized void replace(byte[] key, byte[] value) {
+            if (entries.containsKey(new ByteKey(key))) put(key, value);
+        }
+
+        synchronized void remove(byte[] key) {
+            byte[] old = entries.remove(new ByteKey(key));
+            if (old != null) bytes -= key.length + old.length;
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+}
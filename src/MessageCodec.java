@@ -0,0 +1,200 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hand-written binary encoding of the messages sent over the NIO transport.
+ * A frame is [int length][long requestId][byte code][body], length counts everything after itself.
+ * Requests carry a method code, responses a status code.
+ */
+public class MessageCodec {
+    // method codes
+    public static final byte SEND_COMMAND = 1;
+    public static final byte READ = 2;
+    public static final byte PROMISE = 3;
+    public static final byte ACCEPT = 4;
+    public static final byte MAX_ACCEPTED_ROUND = 5;
+    public static final byte LEARN = 6;
+    public static final byte FETCH_CHOSEN = 7;
+    public static final byte FETCH_SNAPSHOT = 8;
+    public static final byte QUERY = 9;
+    public static final byte HEARTBEAT = 10;
+    public static final byte FORWARD_COMMAND = 11;
+    public static final byte METRICS = 12;
+    public static final byte LEARN_CHOSEN = 13;
+
+    // status codes
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+
+    // bytes of a frame after the length field and before the body
+    public static final int FRAME_HEADER = Long.BYTES + 1;
+
+    // writes a message body
+    public interface Writer {
+        void write(ByteBuffer out);
+    }
+
+    /**
+     * Encode a whole frame, flipped and ready to write. Starts in a pooled direct buffer and moves to
+     * bigger heap buffers if the body doesn't fit, release the result to the pool once written.
+     */
+    public static ByteBuffer frame(BufferPool pool, long requestId, byte code, Writer body) {
+        ByteBuffer out = pool.acquire();
+        while (true) {
+            try {
+                out.clear();
+                out.putInt(0);
+                out.putLong(requestId);
+                out.put(code);
+                body.write(out);
+                out.putInt(0, out.position() - Integer.BYTES);
+                out.flip();
+                return out;
+            } catch (BufferOverflowException e) {
+                pool.release(out);
+                out = ByteBuffer.allocate(out.capacity() * 2);
+            }
+        }
+    }
+
+    public static void putString(ByteBuffer out, String s) {
+        if (s == null) {
+            out.putInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    public static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // status, error code and what follows share one byte: [value][multi][2 bits status][4 bits error]
+    public static void putResult(ByteBuffer out, Result result) {
+        out.put((byte) (result.status.ordinal() << 4 | result.error.ordinal() | (result.isMulti() ? 0x40 : 0)
+                | (result.value != null ? 0x80 : 0)));
+        if (result.value != null) Varint.putBytes(out, result.value);
+        if (!result.isMulti()) return;
+        Varint.putVarInt(out, result.values.length);
+        out.put((byte) (result.keys != null ? 1 : 0));
+        for (int i = 0; i < result.values.length; i++) {
+            if (result.keys != null) Varint.putBytes(out, result.keys[i]);
+            Varint.putNullableBytes(out, result.values[i]);
+        }
+        Varint.putNullableBytes(out, result.next);
+    }
+
+    public static Result getResult(ByteBuffer in) {
+        int code = in.get();
+        byte[] value = (code & 0x80) != 0 ? Varint.getBytes(in) : null;
+        if ((code & 0x40) == 0) return Result.of(code >> 4 & 0x3, code & 0xF, value);
+        byte[][] values = new byte[Varint.getVarInt(in)][];
+        byte[][] keys = in.get() == 1 ? new byte[values.length][] : null;
+        for (int i = 0; i < values.length; i++) {
+            if (keys != null) keys[i] = Varint.getBytes(in);
+            values[i] = Varint.getNullableBytes(in);
+        }
+        byte[] next = Varint.getNullableBytes(in);
+        return keys == null ? Result.values(values) : Result.entries(keys, values, next);
+    }
+
+    // a null operation is a single 0 byte, the type byte of an encoded one is never 0
+    public static void putOperation(ByteBuffer out, Operation operation) {
+        if (operation == null) {
+            out.put((byte) 0);
+            return;
+        }
+        operation.encode(out);
+    }
+
+    public static Operation getOperation(ByteBuffer in) {
+        if (in.get(in.position()) == 0) {
+            in.get();
+            return null;
+        }
+        return Operation.decode(in);
+    }
+
+    public static void putPromise(ByteBuffer out, PromiseMsg msg) {
+        out.put((byte) (msg.ack ? 1 : 0));
+        out.putInt(msg.promisedNum);
+        out.put((byte) (msg.acceptedValue != null ? 1 : 0));
+        if (msg.acceptedValue != null) {
+            out.putInt(msg.acceptedBallot);
+            putOperation(out, msg.acceptedValue);
+        }
+        out.putInt(msg.lastAcceptedRound);
+        out.put((byte) (msg.compacted ? 1 : 0));
+    }
+
+    public static PromiseMsg getPromise(ByteBuffer in) {
+        boolean ack = in.get() == 1;
+        int promisedNum = in.getInt();
+        int acceptedBallot = 0;
+        Operation acceptedValue = null;
+        if (in.get() == 1) {
+            acceptedBallot = in.getInt();
+            acceptedValue = getOperation(in);
+        }
+        PromiseMsg msg = new PromiseMsg(ack, promisedNum, acceptedBallot, acceptedValue, in.getInt());
+        msg.compacted = in.get() == 1;
+        return msg;
+    }
+
+    public static void putAcceptReply(ByteBuffer out, AcceptReply reply) {
+        out.put((byte) (reply.ack ? 1 : 0));
+        out.putInt(reply.promisedNum);
+        out.put((byte) (reply.compacted ? 1 : 0));
+    }
+
+    public static AcceptReply getAcceptReply(ByteBuffer in) {
+        AcceptReply reply = new AcceptReply(in.get() == 1, in.getInt());
+        reply.compacted = in.get() == 1;
+        return reply;
+    }
+
+    public static void putSnapshotChunk(ByteBuffer out, SnapshotChunk chunk) {
+        out.putInt(chunk.round);
+        out.putLong(chunk.offset);
+        out.putLong(chunk.size);
+        Varint.putBytes(out, chunk.bytes);
+    }
+
+    public static SnapshotChunk getSnapshotChunk(ByteBuffer in) {
+        int round = in.getInt();
+        long offset = in.getLong();
+        long size = in.getLong();
+        return new SnapshotChunk(round, offset, Varint.getBytes(in), size);
+    }
+
+    // the values of a run of rounds, entries may be null
+    public static void putValues(ByteBuffer out, Operation[] values) {
+        out.putInt(values.length);
+        for (Operation value : values) putOperation(out, value);
+    }
+
+    public static Operation[] getValues(ByteBuffer in) {
+        Operation[] values = new Operation[in.getInt()];
+        for (int i = 0; i < values.length; i++) values[i] = getOperation(in);
+        return values;
+    }
+
+    public static void putCatchUp(ByteBuffer out, CatchUpReply reply) {
+        out.putInt(reply.fromRound);
+        putValues(out, reply.values);
+        out.putInt(reply.snapshotRound);
+    }
+
+    public static CatchUpReply getCatchUp(ByteBuffer in) {
+        int fromRound = in.getInt();
+        Operation[] values = getValues(in);
+        return new CatchUpReply(fromRound, values, in.getInt());
+    }
+}
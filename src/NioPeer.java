@@ -0,0 +1,301 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client side of the NIO transport, stands in for a remote server wherever an RMI stub would be used.
+ * All calls share one connection that is opened lazily and reopened after a failure; requests are
+ * pipelined on it and a reader thread hands every response to the caller waiting for its request id.
+ */
+public class NioPeer implements ServerInterface, AcceptorInterface, LearnerInterface, LeaderInterface, Closeable {
+    // how long a call waits for its response
+    public static final long CALL_TIMEOUT_MS = 5000;
+    // sendCommand waits for a whole consensus round, possibly with retries
+    public static final long COMMAND_TIMEOUT_MS = 30000;
+
+    private final InetSocketAddress address;
+    private final BufferPool pool;
+    private final AtomicLong requestIds = new AtomicLong();
+    private final ConcurrentHashMap<Long, CompletableFuture<ByteBuffer>> calls = new ConcurrentHashMap<>();
+    // guards connecting and writing frames
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private SocketChannel channel;
+
+    public NioPeer(String host, int port) {
+        this(host, port, BufferPool.DEFAULT);
+    }
+
+    public NioPeer(String host, int port, BufferPool pool) {
+        this.address = new InetSocketAddress(host, port);
+        this.pool = pool;
+    }
+
+    @Override
+    public Result sendCommand(Operation operation) throws RemoteException {
+        return MessageCodec.getResult(await(send(MessageCodec.SEND_COMMAND,
+                out -> MessageCodec.putOperation(out, operation), COMMAND_TIMEOUT_MS)));
+    }
+
+    /**
+     * Like sendCommand but returns right away, any number of commands can be in flight on the connection.
+     * The future fails with a RemoteException, callbacks run on the connection's reader thread and must not block.
+     *
+     * @param operation The operation to be proposed.
+     */
+    public CompletableFuture<Result> sendCommandAsync(Operation operation) {
+        return send(MessageCodec.SEND_COMMAND, out -> MessageCodec.putOperation(out, operation), COMMAND_TIMEOUT_MS)
+                .thenApply(MessageCodec::getResult);
+    }
+
+    @Override
+    public Result read(byte[] key, boolean stale) throws RemoteException {
+        return MessageCodec.getResult(await(readRequest(key, stale)));
+    }
+
+    /**
+     * Like read but returns right away, see sendCommandAsync.
+     *
+     * @param key   The key to read.
+     * @param stale Whether a possibly outdated value is good enough.
+     */
+    public CompletableFuture<Result> readAsync(byte[] key, boolean stale) {
+        return readRequest(key, stale).thenApply(MessageCodec::getResult);
+    }
+
+    @Override
+    public Result query(Operation query, boolean stale) throws RemoteException {
+        return MessageCodec.getResult(await(queryRequest(query, stale)));
+    }
+
+    /**
+     * Like query but returns right away, see sendCommandAsync.
+     *
+     * @param query The GET, MGET or SCAN to run.
+     * @param stale Whether a possibly outdated view is good enough.
+     */
+    public CompletableFuture<Result> queryAsync(Operation query, boolean stale) {
+        return queryRequest(query, stale).thenApply(MessageCodec::getResult);
+    }
+
+    private CompletableFuture<ByteBuffer> queryRequest(Operation query, boolean stale) {
+        return send(MessageCodec.QUERY, out -> {
+            MessageCodec.putOperation(out, query);
+            out.put((byte) (stale ? 1 : 0));
+        }, CALL_TIMEOUT_MS);
+    }
+
+    private CompletableFuture<ByteBuffer> readRequest(byte[] key, boolean stale) {
+        return send(MessageCodec.READ, out -> {
+            Varint.putBytes(out, key);
+            out.put((byte) (stale ? 1 : 0));
+        }, CALL_TIMEOUT_MS);
+    }
+
+    @Override
+    public String dumpMetrics() throws RemoteException {
+        return MessageCodec.getString(call(MessageCodec.METRICS, out -> { }, CALL_TIMEOUT_MS));
+    }
+
+    @Override
+    public PromiseMsg promise(int round, int proposalId) throws RemoteException {
+        ByteBuffer in = call(MessageCodec.PROMISE, out -> {
+            out.putInt(round);
+            out.putInt(proposalId);
+        }, CALL_TIMEOUT_MS);
+        return MessageCodec.getPromise(in);
+    }
+
+    @Override
+    public AcceptReply accept(int round, int proposalId, Operation proposalValue) throws RemoteException {
+        ByteBuffer in = call(MessageCodec.ACCEPT, out -> {
+            out.putInt(round);
+            out.putInt(proposalId);
+            MessageCodec.putOperation(out, proposalValue);
+        }, CALL_TIMEOUT_MS);
+        return MessageCodec.getAcceptReply(in);
+    }
+
+    @Override
+    public int maxAcceptedRound() throws RemoteException {
+        return call(MessageCodec.MAX_ACCEPTED_ROUND, out -> { }, CALL_TIMEOUT_MS).getInt();
+    }
+
+    @Override
+    public void learn(int round, int proposalId, Operation acceptedValue) throws RemoteException {
+        call(MessageCodec.LEARN, out -> {
+            out.putInt(round);
+            out.putInt(proposalId);
+            MessageCodec.putOperation(out, acceptedValue);
+        }, CALL_TIMEOUT_MS);
+    }
+
+    @Override
+    public void learnChosen(int fromRound, Operation[] values) throws RemoteException {
+        call(MessageCodec.LEARN_CHOSEN, out -> {
+            out.putInt(fromRound);
+            MessageCodec.putValues(out, values);
+        }, CALL_TIMEOUT_MS);
+    }
+
+    @Override
+    public CatchUpReply fetchChosen(int fromRound, int maxRounds) throws RemoteException {
+        ByteBuffer in = call(MessageCodec.FETCH_CHOSEN, out -> {
+            out.putInt(fromRound);
+            out.putInt(maxRounds);
+        }, CALL_TIMEOUT_MS);
+        return MessageCodec.getCatchUp(in);
+    }
+
+    @Override
+    public int heartbeat(int ballot) throws RemoteException {
+        return call(MessageCodec.HEARTBEAT, out -> out.putInt(ballot), CALL_TIMEOUT_MS).getInt();
+    }
+
+    @Override
+    public Result forwardCommand(Operation operation) throws RemoteException {
+        return MessageCodec.getResult(await(send(MessageCodec.FORWARD_COMMAND,
+                out -> MessageCodec.putOperation(out, operation), COMMAND_TIMEOUT_MS)));
+    }
+
+    @Override
+    public SnapshotChunk fetchSnapshot(int round, long offset, int maxBytes) throws RemoteException {
+        ByteBuffer in = call(MessageCodec.FETCH_SNAPSHOT, out -> {
+            out.putInt(round);
+            out.putLong(offset);
+            out.putInt(maxBytes);
+        }, CALL_TIMEOUT_MS);
+        return MessageCodec.getSnapshotChunk(in);
+    }
+
+    // send one request and wait for its response body
+    private ByteBuffer call(byte method, MessageCodec.Writer args, long timeoutMs) throws RemoteException {
+        return await(send(method, args, timeoutMs));
+    }
+
+    private ByteBuffer await(CompletableFuture<ByteBuffer> response) throws RemoteException {
+        try {
+            return response.get();
+        } catch (ExecutionException e) {
+            // send only ever fails with a RemoteException
+            throw (RemoteException) e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("interrupted while calling " + address);
+        }
+    }
+
+    // write one request, the future gets its response body positioned after the status byte or a RemoteException
+    private CompletableFuture<ByteBuffer> send(byte method, MessageCodec.Writer args, long timeoutMs) {
+        long requestId = requestIds.incrementAndGet();
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        calls.put(requestId, response);
+        ByteBuffer frame = MessageCodec.frame(pool, requestId, method, args);
+        writeLock.lock();
+        try {
+            SocketChannel target = connect();
+            while (frame.hasRemaining()) target.write(frame);
+        } catch (IOException e) {
+            disconnect(e);
+            calls.remove(requestId);
+            return CompletableFuture.failedFuture(new RemoteException("cannot reach " + address, e));
+        } finally {
+            writeLock.unlock();
+            pool.release(frame);
+        }
+        CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        response.orTimeout(timeoutMs, TimeUnit.MILLISECONDS).whenComplete((in, e) -> {
+            calls.remove(requestId);
+            if (e instanceof TimeoutException) {
+                result.completeExceptionally(new RemoteException("no response from " + address + " within " + timeoutMs + " ms"));
+            } else if (e != null) {
+                result.completeExceptionally(new RemoteException("connection to " + address + " failed", e));
+            } else if (in.get() == MessageCodec.ERROR) {
+                result.completeExceptionally(new RemoteException(MessageCodec.getString(in)));
+            } else {
+                result.complete(in);
+            }
+        });
+        return result;
+    }
+
+    // open the connection if needed, needs writeLock
+    private SocketChannel connect() throws IOException {
+        if (channel != null && channel.isOpen()) return channel;
+        SocketChannel opened = SocketChannel.open(address);
+        opened.socket().setTcpNoDelay(true);
+        channel = opened;
+        Thread reader = new Thread(() -> readResponses(opened), "nio-peer-" + address);
+        reader.setDaemon(true);
+        reader.start();
+        return opened;
+    }
+
+    // runs for the lifetime of one connection, responses come back in any order
+    private void readResponses(SocketChannel connection) {
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        try {
+            while (true) {
+                header.clear();
+                readFully(connection, header);
+                int length = header.flip().getInt();
+                // same cap as NioServer puts on requests, checked before anything is allocated; throwing disconnects
+                if (length < MessageCodec.FRAME_HEADER || length > NioServer.MAX_FRAME_SIZE) {
+                    throw new IOException("bad frame length " + length);
+                }
+                // heap buffer, the caller decodes it after this thread has moved on
+                ByteBuffer body = ByteBuffer.allocate(length);
+                readFully(connection, body);
+                body.flip();
+                CompletableFuture<ByteBuffer> response = calls.get(body.getLong());
+                // nobody waits any more if the call timed out
+                if (response != null) response.complete(body);
+            }
+        } catch (IOException e) {
+            writeLock.lock();
+            try {
+                if (channel == connection) disconnect(e);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private static void readFully(SocketChannel connection, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (connection.read(buffer) < 0) throw new IOException("connection closed");
+        }
+    }
+
+    // drop the connection and fail every call still waiting on it
+    private void disconnect(IOException cause) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            channel = null;
+        }
+        for (CompletableFuture<ByteBuffer> response : calls.values()) response.completeExceptionally(cause);
+    }
+
+    @Override
+    public void close() {
+        writeLock.lock();
+        try {
+            disconnect(new IOException("peer closed"));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves a Server's client, acceptor, learner and leader calls over non-blocking NIO channels, the alternative to RMI.
+ * One selector thread reads and writes frames (see MessageCodec) on every connection, calls run on worker
+ * threads because some of them, like sendCommand, block until consensus is reached. Connections stay open
+ * and carry any number of concurrent requests, matched up by request id.
+ */
+public class NioServer implements Closeable {
+    // largest request frame taken, the length prefix comes from the peer and is checked before anything is allocated
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    private final BufferPool pool;
+    private final ServerInterface service;
+    private final AcceptorInterface acceptor;
+    private final LearnerInterface learner;
+    private final LeaderInterface leader;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService workers;
+    private final Thread selectorThread;
+    private volatile boolean running = true;
+
+    // a decoded request, run on a worker thread, returns the writer of the response body
+    private interface Invocation {
+        MessageCodec.Writer invoke() throws RemoteException;
+    }
+
+    // read state and pending responses of one client connection
+    private static class Connection {
+        final SocketChannel channel;
+        final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        ByteBuffer body;
+        final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<>();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Bind the port and start serving.
+     *
+     * @param port   Port to listen on.
+     * @param server The server whose roles are exposed.
+     */
+    public NioServer(int port, Server server) throws IOException {
+        this(port, server, server, server, server, BufferPool.DEFAULT);
+    }
+
+    public NioServer(int port, ServerInterface service, AcceptorInterface acceptor, LearnerInterface learner,
+                     LeaderInterface leader, BufferPool pool) throws IOException {
+        this.service = service;
+        this.acceptor = acceptor;
+        this.learner = learner;
+        this.leader = leader;
+        this.pool = pool;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        workers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "nio-worker-" + port);
+            t.setDaemon(true);
+            return t;
+        });
+        selectorThread = new Thread(this::run, "nio-selector-" + port);
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) accept();
+                        if (key.isValid() && key.isReadable()) read(key);
+                        if (key.isValid() && key.isWritable()) write(key);
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+            } catch (IOException e) {
+                if (running) System.out.println("nio selector failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+    }
+
+    // read as many whole frames as are available, each one goes to a worker
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        while (true) {
+            if (connection.body == null) {
+                if (connection.channel.read(connection.header) < 0) throw new IOException("connection closed");
+                if (connection.header.hasRemaining()) return;
+                int length = connection.header.flip().getInt();
+                connection.header.clear();
+                // a negative length is caught here too; throwing closes the connection
+                if (length < MessageCodec.FRAME_HEADER || length > MAX_FRAME_SIZE) {
+                    throw new IOException("bad frame length " + length);
+                }
+                connection.body = length <= pool.bufferSize() ? pool.acquire() : ByteBuffer.allocate(length);
+                connection.body.limit(length);
+            }
+            if (connection.channel.read(connection.body) < 0) throw new IOException("connection closed");
+            if (connection.body.hasRemaining()) return;
+            ByteBuffer body = connection.body.flip();
+            connection.body = null;
+            long requestId = body.getLong();
+            Invocation invocation;
+            try {
+                invocation = decode(body.get(), body);
+            } catch (RuntimeException e) {
+                throw new IOException("malformed frame", e);
+            } finally {
+                pool.release(body);
+            }
+            workers.execute(() -> respond(key, connection, requestId, invocation));
+        }
+    }
+
+    private void respond(SelectionKey key, Connection connection, long requestId, Invocation invocation) {
+        ByteBuffer response;
+        try {
+            response = MessageCodec.frame(pool, requestId, MessageCodec.OK, invocation.invoke());
+        } catch (RemoteException | RuntimeException e) {
+            String message = e.getMessage();
+            response = MessageCodec.frame(pool, requestId, MessageCodec.ERROR, out -> MessageCodec.putString(out, message));
+        }
+        connection.responses.add(response);
+        // let the selector thread write it
+        try {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            selector.wakeup();
+        } catch (RuntimeException e) {
+            // connection got closed meanwhile, nobody waits for the response any more
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer response;
+        while ((response = connection.responses.peek()) != null) {
+            connection.channel.write(response);
+            if (response.hasRemaining()) return;
+            connection.responses.poll();
+            pool.release(response);
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        // a worker may have queued a response between the last peek and the line above
+        if (!connection.responses.isEmpty()) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    // decode the arguments right away, the call itself runs later on a worker
+    private Invocation decode(byte method, ByteBuffer in) throws IOException {
+        switch (method) {
+            case MessageCodec.SEND_COMMAND -> {
+                Operation operation = MessageCodec.getOperation(in);
+                return () -> {
+                    Result result = service.sendCommand(operation);
+                    return out -> MessageCodec.putResult(out, result);
+                };
+            }
+            case MessageCodec.READ -> {
+                byte[] key = Varint.getBytes(in);
+                boolean stale = in.get() == 1;
+                return () -> {
+                    Result result = service.read(key, stale);
+                    return out -> MessageCodec.putResult(out, result);
+                };
+            }
+            case MessageCodec.QUERY -> {
+                Operation query = MessageCodec.getOperation(in);
+                boolean stale = in.get() == 1;
+                return () -> {
+                    Result result = service.query(query, stale);
+                    return out -> MessageCodec.putResult(out, result);
+                };
+            }
+            case MessageCodec.METRICS -> {
+                return () -> {
+                    String metrics = service.dumpMetrics();
+                    return out -> MessageCodec.putString(out, metrics);
+                };
+            }
+            case MessageCodec.PROMISE -> {
+                int round = in.getInt();
+                int proposalId = in.getInt();
+                return () -> {
+                    PromiseMsg msg = acceptor.promise(round, proposalId);
+                    return out -> MessageCodec.putPromise(out, msg);
+                };
+            }
+            case MessageCodec.ACCEPT -> {
+                int round = in.getInt();
+                int proposalId = in.getInt();
+                Operation value = MessageCodec.getOperation(in);
+                return () -> {
+                    AcceptReply reply = acceptor.accept(round, proposalId, value);
+                    return out -> MessageCodec.putAcceptReply(out, reply);
+                };
+            }
+            case MessageCodec.MAX_ACCEPTED_ROUND -> {
+                return () -> {
+                    int round = acceptor.maxAcceptedRound();
+                    return out -> out.putInt(round);
+                };
+            }
+            case MessageCodec.LEARN -> {
+                int round = in.getInt();
+                int proposalId = in.getInt();
+                Operation value = MessageCodec.getOperation(in);
+                return () -> {
+                    learner.learn(round, proposalId, value);
+                    return out -> { };
+                };
+            }
+            case MessageCodec.LEARN_CHOSEN -> {
+                int fromRound = in.getInt();
+                Operation[] values = MessageCodec.getValues(in);
+                return () -> {
+                    learner.learnChosen(fromRound, values);
+                    return out -> { };
+                };
+            }
+            case MessageCodec.FETCH_CHOSEN -> {
+                int fromRound = in.getInt();
+                int maxRounds = in.getInt();
+                return () -> {
+                    CatchUpReply reply = learner.fetchChosen(fromRound, maxRounds);
+                    return out -> MessageCodec.putCatchUp(out, reply);
+                };
+            }
+            case MessageCodec.FETCH_SNAPSHOT -> {
+                int round = in.getInt();
+                long offset = in.getLong();
+                int maxBytes = in.getInt();
+                return () -> {
+                    SnapshotChunk chunk = learner.fetchSnapshot(round, offset, maxBytes);
+                    return out -> MessageCodec.putSnapshotChunk(out, chunk);
+                };
+            }
+            case MessageCodec.HEARTBEAT -> {
+                int ballot = in.getInt();
+                return () -> {
+                    int promised = leader.heartbeat(ballot);
+                    return out -> out.putInt(promised);
+                };
+            }
+            case MessageCodec.FORWARD_COMMAND -> {
+                Operation operation = MessageCodec.getOperation(in);
+                return () -> {
+                    Result result = leader.forwardCommand(operation);
+                    return out -> MessageCodec.putResult(out, result);
+                };
+            }
+            default -> throw new IOException("unknown method " + method);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        serverChannel.close();
+        for (SelectionKey key : selector.keys()) close(key);
+        selector.close();
+        workers.shutdownNow();
+    }
+}
@@ -1,30 +1,453 @@
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-// parse the client command input string
-public class Operation implements Serializable {
-    String type;
-    String key;
-    String value;
+/**
+ * A command for the key-value store with binary key and value. One compact encoding is used everywhere, in the
+ * write-ahead log, on the NIO transport and inside RMI messages:
+ * [byte type | flags][varint id][session: long clientId, varint seq, varint ackSeq][varint length, key]
+ * [varint length, value][SCAN: varint limit][varint count, operations], parts whose flag is not set are left out.
+ * Multi-key commands hold their parts as operations in batch: the GETs of an MGET, the PUTs of an MPUT, and for
+ * a TXN the CHECKs that must all hold followed by the PUTs and DELETEs that are applied if they do.
+ * A CONFIG carries its Configuration as varints in value: [count, members][count, witnesses][q1][q2].
+ */
+public class Operation implements Externalizable {
+    public static final byte PUT = 1;
+    public static final byte DELETE = 2;
+    public static final byte GET = 3;
+    // filler for a round nobody has accepted anything in
+    public static final byte NOOP = 4;
+    public static final byte BATCH = 5;
+    public static final byte MGET = 6;
+    public static final byte MPUT = 7;
+    // keys from key (inclusive) to value (exclusive, or to the end if null) in unsigned byte order, at most limit
+    public static final byte SCAN = 8;
+    public static final byte TXN = 9;
+    // condition of a TXN, the key must hold value, or be absent if value is null
+    public static final byte CHECK = 10;
+    // membership change, the servers in value vote from Server.CONFIG_WINDOW rounds after the round it is applied in
+    public static final byte CONFIG = 11;
 
+    // largest page a SCAN returns, bigger limits are cut to it; the result's next key tells where to go on
+    public static final int MAX_SCAN_LIMIT = 10_000;
+
+    private static final int TYPE_MASK = 0x0F;
+    private static final int HAS_SESSION = 0x10;
+    private static final int HAS_KEY = 0x20;
+    private static final int HAS_VALUE = 0x40;
+    private static final int HAS_BATCH = 0x80;
+
+    byte type;
+    byte[] key;
+    byte[] value;
+    // unique id stamped by the proposing server, tells its own value apart from others after a round trip
+    long id;
+    // set by clients that retry, 0 if the command has no session; seq numbers the client's commands,
+    // every seq below ackSeq has been answered and may be forgotten by the servers
+    long clientId;
+    long seq;
+    long ackSeq;
+    // client operations proposed together in one round for BATCH, the parts of a multi-key command otherwise
+    List<Operation> batch;
+    // most entries a SCAN returns
+    int limit;
+
+    // for decoding, use the factories
+    public Operation() {
+    }
+
+    private Operation(byte type, byte[] key, byte[] value) {
+        this.type = type;
+        this.key = key;
+        this.value = value;
+    }
+
+    /**
+     * Parse a command typed into the CLI: "GET key", "DELETE key" or "PUT key value", the value is the rest of the
+     * line and may contain spaces. Key and value are taken as UTF-8. Multi-key commands are "MGET key...",
+     * "MPUT key value...", "SCAN from [to] limit" and "CAS key expected new", their values can't contain spaces.
+     * "CONFIG id... [WITNESS id...] [Q1 n] [Q2 n]" sets the servers that vote, which of them are witnesses and the
+     * quorum sizes of the two phases, a majority where left out; see Configuration.
+     *
+     * @return The operation, or null if the command is malformed.
+     */
     public static Operation createOperation(String operation){
-        Operation res = new Operation();
-        String[] parts = operation.split(" ");
-        if(parts.length < 2 || parts.length > 3) return null;
+        String[] words = operation.trim().split(" +");
+        switch (words[0]){
+            case "MGET":
+            case "MPUT":
+            case "SCAN":
+            case "CAS":
+                return createMultiKey(words);
+            case "CONFIG":
+                return createConfig(words);
+            default:
+                break;
+        }
+        String[] parts = operation.split(" ", 3);
+        if(parts.length < 2 || parts[1].isEmpty() || parts.length == 3 && parts[2].isEmpty()) return null;
+        byte[] key = parts[1].getBytes(StandardCharsets.UTF_8);
         switch (parts[0]){
             case "GET":
+                return parts.length == 2 ? get(key) : null;
             case "DELETE":
-                if(parts.length != 2) return null;
-                break;
+                return parts.length == 2 ? delete(key) : null;
             case "PUT":
-                if(parts.length != 3) return null;
-                res.value = parts[2];
-                break;
+                return parts.length == 3 ? put(key, parts[2].getBytes(StandardCharsets.UTF_8)) : null;
             default:
                 return null;
         }
-        res.type = parts[0];
-        res.key = parts[1];
+    }
+
+    // "CONFIG id... [WITNESS id...] [Q1 n] [Q2 n]"
+    private static Operation createConfig(String[] words) {
+        List<Integer> members = new ArrayList<>();
+        List<Integer> witnesses = new ArrayList<>();
+        int q1 = 0;
+        int q2 = 0;
+        List<Integer> ids = members;
+        try {
+            for (int i = 1; i < words.length; i++) {
+                switch (words[i]) {
+                    case "WITNESS" -> ids = witnesses;
+                    case "Q1" -> q1 = quorum(words[++i]);
+                    case "Q2" -> q2 = quorum(words[++i]);
+                    default -> ids.add(Integer.parseInt(words[i]));
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+        if (members.isEmpty()) return null;
+        Operation config = config(toArray(members), toArray(witnesses), q1, q2);
+        return config.isValidCommand() ? config : null;
+    }
+
+    // a quorum size typed in, 0 stands for a majority only inside the encoding
+    private static int quorum(String word) {
+        int size = Integer.parseInt(word);
+        if (size < 1) throw new NumberFormatException("quorum size " + size);
+        return size;
+    }
+
+    private static int[] toArray(List<Integer> ids) {
+        int[] array = new int[ids.size()];
+        for (int i = 0; i < array.length; i++) array[i] = ids.get(i);
+        return array;
+    }
+
+    private static Operation createMultiKey(String[] words){
+        int n = words.length - 1;
+        switch (words[0]){
+            case "MGET": {
+                if (n < 1) return null;
+                List<byte[]> keys = new ArrayList<>(n);
+                for (int i = 1; i <= n; i++) keys.add(utf8(words[i]));
+                return mget(keys);
+            }
+            case "MPUT": {
+                if (n < 2 || n % 2 != 0) return null;
+                List<Operation> puts = new ArrayList<>(n / 2);
+                for (int i = 1; i < n; i += 2) puts.add(put(utf8(words[i]), utf8(words[i + 1])));
+                return mput(puts);
+            }
+            case "SCAN": {
+                if (n < 2 || n > 3) return null;
+                int limit;
+                try {
+                    limit = Integer.parseInt(words[n]);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                if (limit < 1) return null;
+                return scan(utf8(words[1]), n == 3 ? utf8(words[2]) : null, limit);
+            }
+            default:
+                return n == 3 ? cas(utf8(words[1]), utf8(words[2]), utf8(words[3])) : null;
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static Operation put(byte[] key, byte[] value) {
+        return new Operation(PUT, key, value);
+    }
+
+    public static Operation get(byte[] key) {
+        return new Operation(GET, key, null);
+    }
+
+    public static Operation delete(byte[] key) {
+        return new Operation(DELETE, key, null);
+    }
+
+    public static Operation mget(List<byte[]> keys) {
+        Operation res = new Operation(MGET, null, null);
+        res.batch = new ArrayList<>(keys.size());
+        for (byte[] key : keys) res.batch.add(get(key));
+        return res;
+    }
+
+    // all the PUTs are applied together
+    public static Operation mput(List<Operation> puts) {
+        Operation res = new Operation(MPUT, null, null);
+        res.batch = puts;
+        return res;
+    }
+
+    /**
+     * Entries with keys from from (inclusive) up to to (exclusive) in unsigned byte order. The result holds the key
+     * to continue from if there were more than limit.
+     *
+     * @param from  First key of the range, an empty key starts at the beginning.
+     * @param to    End of the range, null for no end.
+     * @param limit Most entries returned, at most MAX_SCAN_LIMIT.
+     */
+    public static Operation scan(byte[] from, byte[] to, int limit) {
+        Operation res = new Operation(SCAN, from, to);
+        res.limit = Math.min(limit, MAX_SCAN_LIMIT);
+        return res;
+    }
+
+    // a condition of a transaction, the key must hold expected, or be absent if expected is null
+    public static Operation check(byte[] key, byte[] expected) {
+        return new Operation(CHECK, key, expected);
+    }
+
+    /**
+     * Atomically apply writes if every condition holds, in one log entry. Fails with CONDITION_FAILED otherwise.
+     *
+     * @param checks Conditions made with check.
+     * @param writes PUTs and DELETEs.
+     */
+    public static Operation txn(List<Operation> checks, List<Operation> writes) {
+        Operation res = new Operation(TXN, null, null);
+        res.batch = new ArrayList<>(checks.size() + writes.size());
+        res.batch.addAll(checks);
+        res.batch.addAll(writes);
+        return res;
+    }
+
+    // compare-and-set, a transaction on one key
+    public static Operation cas(byte[] key, byte[] expected, byte[] value) {
+        return txn(List.of(check(key, expected)), List.of(put(key, value)));
+    }
+
+    // whether a client may send this, anything else is refused before it gets near the log
+    public boolean isValidCommand() {
+        switch (type) {
+            case PUT:
+                return key != null && value != null && batch == null;
+            case DELETE:
+            case GET:
+                return key != null && value == null && batch == null;
+            case SCAN:
+                return key != null && limit > 0 && limit <= MAX_SCAN_LIMIT && batch == null;
+            case MGET:
+                return hasParts(GET);
+            case MPUT:
+                return hasParts(PUT);
+            case TXN:
+                return hasParts(TXN);
+            case CONFIG:
+                return key == null && batch == null && configuration(0) != null;
+            default:
+                return false;
+        }
+    }
+
+    // batch is non-empty and holds valid parts of the given type, for TXN CHECKs first and at least one write after
+    private boolean hasParts(byte partType) {
+        if (key != null || value != null || batch == null || batch.isEmpty()) return false;
+        boolean writing = false;
+        for (Operation part : batch) {
+            if (part == null || part.clientId != 0) return false;
+            if (partType != TXN) {
+                if (part.type != partType || !part.isValidCommand()) return false;
+            } else if (part.type == CHECK) {
+                if (writing || part.key == null || part.batch != null) return false;
+            } else {
+                if (part.type != PUT && part.type != DELETE || !part.isValidCommand()) return false;
+                writing = true;
+            }
+        }
+        return partType != TXN || writing;
+    }
+
+    // the same command and session without the id a server stamped on it, for proposing it through another server
+    public Operation unstamped() {
+        Operation res = new Operation(type, key, value);
+        res.clientId = clientId;
+        res.seq = seq;
+        res.ackSeq = ackSeq;
+        res.batch = batch;
+        res.limit = limit;
+        return res;
+    }
+
+    // whether this is answered from the store without changing it
+    public boolean isRead() {
+        return type == GET || type == MGET || type == SCAN;
+    }
+
+    // filler value for a round nobody has accepted anything in, lets later rounds be applied
+    public static Operation noop(){
+        return new Operation(NOOP, null, null);
+    }
+
+    // change the servers that vote, all of them keep data and quorums are majorities
+    public static Operation config(int[] members) {
+        return config(members, new int[0], 0, 0);
+    }
+
+    // change the servers that vote, see Configuration; quorums of 0 are majorities
+    public static Operation config(int[] members, int[] witnesses, int q1, int q2) {
+        ByteBuffer out = ByteBuffer.allocate((members.length + witnesses.length + 4) * 10);
+        Varint.putVarInt(out, members.length);
+        for (int member : members) Varint.putVarInt(out, member);
+        Varint.putVarInt(out, witnesses.length);
+        for (int witness : witnesses) Varint.putVarInt(out, witness);
+        Varint.putVarInt(out, q1);
+        Varint.putVarInt(out, q2);
+        return new Operation(CONFIG, null, Arrays.copyOf(out.array(), out.position()));
+    }
+
+    /**
+     * The configuration a CONFIG sets up.
+     *
+     * @param fromRound First round it votes in.
+     * @return The configuration, null if value doesn't hold a valid one.
+     */
+    public Configuration configuration(int fromRound) {
+        if (value == null) return null;
+        ByteBuffer in = ByteBuffer.wrap(value);
+        try {
+            int[] members = getIds(in);
+            int[] witnesses = getIds(in);
+            int q1 = Varint.getVarInt(in);
+            int q2 = Varint.getVarInt(in);
+            if (in.hasRemaining()) return null;
+            return new Configuration(fromRound, members, witnesses, q1, q2);
+        } catch (RuntimeException e) {
+            // cut short, or ids and quorums that don't make a configuration
+            return null;
+        }
+    }
+
+    // a count followed by that many ids
+    private static int[] getIds(ByteBuffer in) {
+        int count = Varint.getVarInt(in);
+        // every id takes at least a byte
+        if (count < 0 || count > in.remaining()) throw new IllegalArgumentException("bad id count " + count);
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) ids[i] = Varint.getVarInt(in);
+        return ids;
+    }
+
+    // many client operations packed into one paxos value
+    public static Operation batch(List<Operation> operations){
+        Operation res = new Operation(BATCH, null, null);
+        res.batch = operations;
+        return res;
+    }
+
+    // bytes encode writes
+    public int encodedSize() {
+        int size = 1 + Varint.size(id);
+        if (clientId != 0) size += Long.BYTES + Varint.size(seq) + Varint.size(ackSeq);
+        if (key != null) size += Varint.sizeOfBytes(key);
+        if (value != null) size += Varint.sizeOfBytes(value);
+        if (type == SCAN) size += Varint.size(limit);
+        if (batch != null) {
+            size += Varint.size(batch.size());
+            for (Operation operation : batch) size += operation.encodedSize();
+        }
+        return size;
+    }
+
+    public void encode(ByteBuffer out) {
+        int flags = (clientId != 0 ? HAS_SESSION : 0) | (key != null ? HAS_KEY : 0) | (value != null ? HAS_VALUE : 0)
+                | (batch != null ? HAS_BATCH : 0);
+        out.put((byte) (type | flags));
+        Varint.putVarLong(out, id);
+        if (clientId != 0) {
+            out.putLong(clientId);
+            Varint.putVarLong(out, seq);
+            Varint.putVarLong(out, ackSeq);
+        }
+        if (key != null) Varint.putBytes(out, key);
+        if (value != null) Varint.putBytes(out, value);
+        if (type == SCAN) Varint.putVarInt(out, limit);
+        if (batch != null) {
+            Varint.putVarInt(out, batch.size());
+            for (Operation operation : batch) operation.encode(out);
+        }
+    }
+
+    // reads straight from the buffer, key and value are the only copies made
+    public static Operation decode(ByteBuffer in) {
+        Operation res = new Operation();
+        res.decodeFrom(in);
         return res;
     }
 
-}
\ No newline at end of file
+    private void decodeFrom(ByteBuffer in) {
+        int header = in.get();
+        type = (byte) (header & TYPE_MASK);
+        if (type < PUT || type > CONFIG) throw new IllegalArgumentException("Unknown operation type: " + type);
+        id = Varint.getVarLong(in);
+        if ((header & HAS_SESSION) != 0) {
+            clientId = in.getLong();
+            seq = Varint.getVarLong(in);
+            ackSeq = Varint.getVarLong(in);
+        }
+        if ((header & HAS_KEY) != 0) key = Varint.getBytes(in);
+        if ((header & HAS_VALUE) != 0) value = Varint.getBytes(in);
+        // cut like in scan, so no limit from the wire gets near Integer.MAX_VALUE
+        if (type == SCAN) limit = Math.min(Varint.getVarInt(in), MAX_SCAN_LIMIT);
+        if ((header & HAS_BATCH) != 0) {
+            int size = Varint.getVarInt(in);
+            // the count comes off the wire, every part takes at least a byte so more than remaining can't be real
+            if (size < 0 || size > in.remaining()) throw new IllegalArgumentException("bad batch size " + size);
+            batch = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) batch.add(decode(in));
+        }
+    }
+
+    // RMI sends the same encoding instead of serializing every field
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedSize());
+        encode(buffer);
+        out.writeInt(buffer.capacity());
+        out.write(buffer.array());
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        decodeFrom(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Operation other)) return false;
+        return id != 0 && id == other.id;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id);
+    }
+
+}
@@ -0,0 +1,75 @@
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps a sorted index of the keys next to a store whose own index is a hash table, so that ranges of keys can be
+ * scanned in order. Writes go to the store first and then to the index, both from the one applying thread.
+ * The index holds every key on the heap, so it only wraps the heap engine; MappedKVStore, meant for datasets
+ * larger than the heap, scans with a pass over its entries instead.
+ */
+public class OrderedKVStore implements KVStoreInterface {
+    private final KVStoreInterface store;
+    private final ConcurrentSkipListSet<ByteKey> keys = new ConcurrentSkipListSet<>();
+
+    public OrderedKVStore(KVStoreInterface store) {
+        this.store = store;
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        return store.get(key);
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        store.put(key, value);
+        keys.add(new ByteKey(key));
+    }
+
+    @Override
+    public boolean delete(byte[] key) {
+        if (!store.delete(key)) return false;
+        keys.remove(new ByteKey(key));
+        return true;
+    }
+
+    // a walk over the sorted index, only the entries of the range are read
+    @Override
+    public void scan(byte[] from, byte[] to, int limit, BiConsumer<byte[], byte[]> action) {
+        ByteKey start = new ByteKey(from);
+        if (to != null && start.compareTo(new ByteKey(to)) >= 0) return;
+        NavigableSet<ByteKey> range = to == null ? keys.tailSet(start, true) : keys.subSet(start, true, new ByteKey(to), false);
+        int found = 0;
+        for (ByteKey key : range) {
+            if (found >= limit) break;
+            byte[] value = store.get(key.bytes);
+            // deleted since the index was read
+            if (value == null) continue;
+            action.accept(key.bytes, value);
+            found++;
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        store.forEach(action);
+    }
+
+    @Override
+    public long size() {
+        return store.size();
+    }
+
+    @Override
+    public void clear() {
+        store.clear();
+        keys.clear();
+    }
+
+    @Override
+    public void close() {
+        store.close();
+        keys.clear();
+    }
+}
@@ -0,0 +1,258 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntFunction;
+
+/**
+ * Benchmarks for the consensus, codec and state-machine hot paths, run from the command line with no extra libraries.
+ * The cluster benchmark wires in-process servers the way PaxosServerCreator does, with direct calls in place of RMI,
+ * and reports commit throughput and latency percentiles for every combination of cluster size, value size and
+ * conflict rate. The micro benchmarks time command parsing, message encoding and the storage engines.
+ * The JMH module in jmh/ runs the same work under JMH; it lives in a package and can't name the classes here, so
+ * the public methods below only take and return JDK types.
+ */
+public class PaxosBenchmark {
+    private static final int[] CLUSTER_SIZES = {3, 5, 7};
+    private static final int[] VALUE_SIZES = {16, 1024};
+    // share of commands sent to some other server than the usual one, each of those duels for the leadership
+    private static final double[] CONFLICT_RATES = {0.0, 0.1, 0.5};
+
+    private static final int CLIENT_THREADS = 32;
+    private static final int WARMUP_OPS = 2000;
+    private static final int MEASURED_OPS = 5000;
+    private static final int MICRO_WARMUP_ITERATIONS = 200_000;
+    private static final int MICRO_ITERATIONS = 1_000_000;
+
+    // results of the micro benchmarks end up here so the JIT can't drop the work
+    private static volatile Object sink;
+
+    /**
+     * Run the benchmarks.
+     *
+     * @param args Optional: "cluster" or "micro" to run only one group, both run by default.
+     */
+    public static void main(String[] args) throws Exception {
+        String only = args.length > 0 ? args[0] : "all";
+        if (!only.equals("all") && !only.equals("cluster") && !only.equals("micro")) {
+            System.err.println("Usage: java PaxosBenchmark [cluster|micro]");
+            System.exit(1);
+        }
+        try {
+            if (!only.equals("cluster")) runMicro();
+            if (!only.equals("micro")) runCluster();
+        } finally {
+            // the servers are exported RMI objects, they keep the JVM alive
+            System.exit(0);
+        }
+    }
+
+    private static void runCluster() throws Exception {
+        System.out.println("servers  value  conflict     ops/s    p50 us    p99 us  p99.9 us   errors");
+        for (int numServers : CLUSTER_SIZES) {
+            for (int valueSize : VALUE_SIZES) {
+                for (double conflictRate : CONFLICT_RATES) {
+                    Server[] servers = createCluster(numServers);
+                    String value = "v".repeat(valueSize);
+                    clusterRun(servers, value, conflictRate, WARMUP_OPS);
+                    ClusterResult result = clusterRun(servers, value, conflictRate, MEASURED_OPS);
+                    System.out.printf("%7d  %5d  %8.2f  %8.0f  %8.1f  %8.1f  %8.1f  %7d%n", numServers, valueSize,
+                            conflictRate, result.throughput(), result.percentile(0.5), result.percentile(0.99),
+                            result.percentile(0.999), result.errors);
+                    stopCluster(servers);
+                }
+            }
+        }
+    }
+
+    // servers that call each other directly, every one is an acceptor and learner of all the others
+    private static Server[] createCluster(int numServers) throws Exception {
+        Server[] servers = new Server[numServers];
+        for (int serverId = 0; serverId < numServers; serverId++) {
+            servers[serverId] = new Server(serverId, numServers);
+        }
+        for (int serverId = 0; serverId < numServers; serverId++) {
+            AcceptorInterface[] acceptors = new AcceptorInterface[numServers];
+            LearnerInterface[] learners = new LearnerInterface[numServers];
+            for (int i = 0; i < numServers; i++) {
+                if (i != serverId) {
+                    acceptors[i] = servers[i];
+                    learners[i] = servers[i];
+                }
+            }
+            servers[serverId].setAcceptors(acceptors);
+            servers[serverId].setLearners(learners);
+        }
+        return servers;
+    }
+
+    /**
+     * Start an in-process cluster, see createCluster.
+     *
+     * @return The servers, to be passed to commit and stopCluster.
+     */
+    public static Object[] startCluster(int numServers) throws Exception {
+        return createCluster(numServers);
+    }
+
+    /**
+     * Commit one command through a server of a cluster from startCluster.
+     *
+     * @return Whether the command was committed.
+     */
+    public static boolean commit(Object[] cluster, int serverIndex, String command) {
+        try {
+            Result result = ((Server) cluster[serverIndex]).sendCommand(Operation.createOperation(command));
+            return result.status() == Result.Status.OK;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // shut every server down, so its threads, exported object and metrics don't pile up over the runs
+    public static void stopCluster(Object[] cluster) {
+        for (Object server : cluster) ((Server) server).shutdown();
+    }
+
+    private static class ClusterResult {
+        final long[] latencies;
+        final long elapsedNanos;
+        final int errors;
+
+        ClusterResult(long[] latencies, long elapsedNanos, int errors) {
+            this.latencies = latencies;
+            this.elapsedNanos = elapsedNanos;
+            this.errors = errors;
+        }
+
+        double throughput() {
+            return latencies.length * 1e9 / elapsedNanos;
+        }
+
+        // in microseconds, latencies are sorted
+        double percentile(double p) {
+            int index = Math.min(latencies.length - 1, (int) Math.ceil(p * latencies.length) - 1);
+            return latencies[Math.max(0, index)] / 1e3;
+        }
+    }
+
+    // numOps puts from CLIENT_THREADS threads, mostly to server 0 and to a random other server at conflictRate
+    private static ClusterResult clusterRun(Server[] servers, String value, double conflictRate, int numOps)
+            throws Exception {
+        long[] latencies = new long[numOps];
+        int[] errors = new int[CLIENT_THREADS];
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENT_THREADS);
+        List<Future<?>> done = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < CLIENT_THREADS; t++) {
+            int thread = t;
+            done.add(clients.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = thread; i < numOps; i += CLIENT_THREADS) {
+                    Server target = servers[0];
+                    if (random.nextDouble() < conflictRate) target = servers[1 + random.nextInt(servers.length - 1)];
+                    long begin = System.nanoTime();
+                    try {
+                        Result result = target.sendCommand(Operation.createOperation("PUT key" + i + " " + value));
+                        if (result.status() != Result.Status.OK) errors[thread]++;
+                    } catch (IOException e) {
+                        errors[thread]++;
+                    }
+                    latencies[i] = System.nanoTime() - begin;
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : done) f.get();
+        long elapsed = System.nanoTime() - start;
+        clients.shutdown();
+        Arrays.sort(latencies);
+        return new ClusterResult(latencies, elapsed, Arrays.stream(errors).sum());
+    }
+
+    private static void runMicro() throws Exception {
+        List<Closeable> resources = new ArrayList<>();
+        try {
+            System.out.println("benchmark                          ns/op");
+            for (Map.Entry<String, IntFunction<Object>> task : microBenchmarks(resources).entrySet()) {
+                micro(task.getKey(), task.getValue());
+            }
+        } finally {
+            for (Closeable resource : resources) resource.close();
+        }
+        System.out.println();
+    }
+
+    /**
+     * The micro benchmarks by name, each maps an iteration number to a result the caller must keep alive.
+     *
+     * @param resources Gets the stores the benchmarks write to, close them when done.
+     */
+    public static Map<String, IntFunction<Object>> microBenchmarks(List<Closeable> resources) throws IOException {
+        String[] commands = {"PUT key42 value42", "GET key42", "DELETE key42"};
+        Operation small = Operation.createOperation("PUT key42 " + "v".repeat(16));
+        Operation large = Operation.createOperation("PUT key42 " + "v".repeat(1024));
+        List<Operation> commandList = new ArrayList<>();
+        for (int i = 0; i < Server.DEFAULT_MAX_BATCH_SIZE; i++) commandList.add(small);
+        Operation batch = Operation.batch(commandList);
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, 4);
+
+        Map<String, IntFunction<Object>> tasks = new LinkedHashMap<>();
+        tasks.put("Operation.createOperation", i -> Operation.createOperation(commands[i % commands.length]));
+        tasks.put("codec.framePut16B", i -> encode(pool, small));
+        tasks.put("codec.framePut1KB", i -> encode(pool, large));
+        tasks.put("codec.framePutBatch", i -> encode(pool, batch));
+        tasks.put("codec.framePutGet1KB", i -> {
+            ByteBuffer frame = MessageCodec.frame(pool, i, MessageCodec.ACCEPT, out -> MessageCodec.putOperation(out, large));
+            frame.position(Integer.BYTES + MessageCodec.FRAME_HEADER);
+            Operation decoded = MessageCodec.getOperation(frame);
+            pool.release(frame);
+            return decoded;
+        });
+        tasks.put("Operation.encode1KB", i -> {
+            ByteBuffer bytes = ByteBuffer.allocate(large.encodedSize());
+            large.encode(bytes);
+            return bytes;
+        });
+        KVStoreInterface heap = new HeapKVStore();
+        resources.add(heap);
+        KVStoreInterface mapped = new MappedKVStore(Files.createTempDirectory("paxos-benchmark"));
+        resources.add(mapped);
+        byte[][] keys = new byte[100_000][];
+        for (int i = 0; i < keys.length; i++) keys[i] = ("key" + i).getBytes(StandardCharsets.UTF_8);
+        byte[] value = new byte[100];
+        for (KVStoreInterface store : new KVStoreInterface[]{heap, mapped}) {
+            String engine = store.getClass().getSimpleName();
+            tasks.put(engine + ".put100B", i -> {
+                store.put(keys[i % keys.length], value);
+                return store;
+            });
+            tasks.put(engine + ".get100B", i -> store.get(keys[i % keys.length]));
+        }
+        return tasks;
+    }
+
+    private static Object encode(BufferPool pool, Operation operation) {
+        ByteBuffer frame = MessageCodec.frame(pool, 1, MessageCodec.ACCEPT, out -> MessageCodec.putOperation(out, operation));
+        int length = frame.remaining();
+        pool.release(frame);
+        return length;
+    }
+
+    private static void micro(String name, IntFunction<Object> task) {
+        for (int i = 0; i < MICRO_WARMUP_ITERATIONS; i++) sink = task.apply(i);
+        long start = System.nanoTime();
+        for (int i = 0; i < MICRO_ITERATIONS; i++) sink = task.apply(i);
+        System.out.printf("%-32s %7.1f%n", name, (System.nanoTime() - start) / (double) MICRO_ITERATIONS);
+    }
+}
@@ -1,7 +1,7 @@
 import java.io.Serializable;
-import java.util.AbstractMap;
 
-// store whole information for current paxos instance
+// store whole information for current paxos instance, kept in the server's InstanceLog
+// proposer and learner fields are guarded by the instance monitor, acceptor fields by the server's acceptorLock
 public class PaxosInstance implements Serializable {
 
     // proposer data
@@ -9,33 +9,35 @@ public class PaxosInstance implements Serializable {
     int round;
     // ballot num/proposalId
     int num;
-    // 0 for running, 1 for settled
+    // 0 for running, 1 for applied, 2 for skipped by installing a snapshot
     int status;
     Operation operation;
+    // a local proposer is driving this round right now, catch-up leaves it alone
+    boolean proposing;
 
 
-    // acceptor data
+    // acceptor data, ballots promised for a whole range live on the Server
     int promised;
-    AbstractMap.SimpleEntry<Integer, Operation> acceptedValue;
+    // ballot acceptedValue was accepted with, meaningless while acceptedValue is null
+    int acceptedBallot;
+    Operation acceptedValue;
 
 
     // learner data
     int learnerCounter = 0;
     Operation learnerVal = null;
     int learnerProposalNum = 0;
+    // System.nanoTime() of the first learn message of learnerProposalNum, for the learn latency
+    long learnerStartNanos;
+    // value chosen for this round, waiting to be applied in log order
+    Operation chosen;
+    // System.nanoTime() when chosen was set, 0 if it came from the write-ahead log
+    long chosenNanos;
 
-    // result for client
-    String clientResponse = "";
     public PaxosInstance(int round, int num, int status, Operation operation){
         this.round = round;
         this.num = num;
         this.status = status;
         this.operation = operation;
-        promised = 0;
-        acceptedValue = null;
-    }
-
-    public void increNum(int step){
-        num += step;
     }
 }
@@ -0,0 +1,141 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters, latency histograms and gauges of one Server. Updating them allocates nothing, so they stay on for every
+ * round; reading them builds maps and text and is meant for JMX and the dumpMetrics call only.
+ *
+ * Latencies: prepare and accept are the proposer's phase 1 and phase 2 round trips. learn is the round trip of
+ * telling a peer about chosen rounds, or with -Dpaxos.learn=all the time from the first learn message of a round to
+ * a phase 2 quorum of them, for rounds that aren't applied yet by then. apply is the time from a round being chosen here
+ * until it is applied, which includes waiting for the gaps before it.
+ */
+public class PaxosMetrics implements PaxosMetricsMXBean {
+    final LatencyHistogram prepare = new LatencyHistogram();
+    final LatencyHistogram accept = new LatencyHistogram();
+    final LatencyHistogram learn = new LatencyHistogram();
+    final LatencyHistogram apply = new LatencyHistogram();
+
+    // promise and accept replies that refused the ballot
+    final LongAdder nacks = new LongAdder();
+    // ballots raised with nextHigherNum after losing to another proposer
+    final LongAdder ballotBumps = new LongAdder();
+    // rounds settled by catch-up, pulled from a peer or recovered with paxos
+    final LongAdder catchUpRounds = new LongAdder();
+    final LongAdder snapshotInstalls = new LongAdder();
+    // phases and ReadIndex checks that didn't hear from a quorum
+    final LongAdder majorityFailures = new LongAdder();
+    // commands handed on to the leader
+    final LongAdder forwards = new LongAdder();
+
+    // by name, filled in before the metrics are shared
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+    // the name registered with JMX, null while not registered
+    private ObjectName name;
+
+    // add a gauge, only while the owning server is being constructed
+    void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Register with the platform MBean server as paxos:type=Server,server=serverId. Several servers of one id
+     * in the same JVM, like the group replicas of a ShardedServer, get ",instance=2", ",instance=3" and so on,
+     * which is logged. A failure is only logged too, the metrics work without JMX. Servers that stop while the JVM
+     * goes on must unregister, see Server.shutdown.
+     *
+     * @param serverId The id of the owning server.
+     */
+    synchronized void register(int serverId) {
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (int instance = 1; ; instance++) {
+                ObjectName candidate = new ObjectName("paxos:type=Server,server=" + serverId
+                        + (instance == 1 ? "" : ",instance=" + instance));
+                try {
+                    mbeans.registerMBean(this, candidate);
+                    name = candidate;
+                    if (instance > 1) System.out.println("metrics of server " + serverId + " registered as " + name);
+                    return;
+                } catch (InstanceAlreadyExistsException e) {
+                    // taken by another server in this JVM, try the next one
+                }
+            }
+        } catch (JMException e) {
+            System.out.println("cannot register metrics of server " + serverId + ": " + e.getMessage());
+        }
+    }
+
+    // leave JMX, so a server started later in this JVM can take the name
+    synchronized void unregister() {
+        if (name == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            System.out.println("cannot unregister metrics " + name + ": " + e.getMessage());
+        }
+        name = null;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("nacks", nacks.sum());
+        counters.put("ballotBumps", ballotBumps.sum());
+        counters.put("catchUpRounds", catchUpRounds.sum());
+        counters.put("snapshotInstalls", snapshotInstalls.sum());
+        counters.put("majorityFailures", majorityFailures.sum());
+        counters.put("forwards", forwards.sum());
+        return counters;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        gauges.forEach((name, value) -> values.put(name, value.getAsLong()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getLatencies() {
+        Map<String, Long> latencies = new LinkedHashMap<>();
+        histograms().forEach((phase, histogram) -> {
+            latencies.put(phase + ".count", histogram.count());
+            latencies.put(phase + ".mean", histogram.meanMicros());
+            latencies.put(phase + ".p50", histogram.percentileMicros(0.5));
+            latencies.put(phase + ".p99", histogram.percentileMicros(0.99));
+            latencies.put(phase + ".p999", histogram.percentileMicros(0.999));
+            latencies.put(phase + ".max", histogram.maxMicros());
+        });
+        return latencies;
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-8s %10s %10s %10s %10s %10s %10s%n", "phase", "count", "mean us", "p50 us",
+                "p99 us", "p99.9 us", "max us"));
+        histograms().forEach((phase, h) -> sb.append(String.format("%-8s %10d %10d %10d %10d %10d %10d%n", phase,
+                h.count(), h.meanMicros(), h.percentileMicros(0.5), h.percentileMicros(0.99),
+                h.percentileMicros(0.999), h.maxMicros())));
+        getCounters().forEach((name, value) -> sb.append(String.format("%-20s %d%n", name, value)));
+        getGauges().forEach((name, value) -> sb.append(String.format("%-20s %d%n", name, value)));
+        return sb.toString();
+    }
+
+    private Map<String, LatencyHistogram> histograms() {
+        Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+        histograms.put("prepare", prepare);
+        histograms.put("accept", accept);
+        histograms.put("learn", learn);
+        histograms.put("apply", apply);
+        return histograms;
+    }
+}
@@ -0,0 +1,18 @@
+import java.util.Map;
+
+/**
+ * JMX view of one Server's PaxosMetrics, registered as paxos:type=Server,server=id.
+ */
+public interface PaxosMetricsMXBean {
+    // events since the server started, by name
+    Map<String, Long> getCounters();
+
+    // current state of the server, by name
+    Map<String, Long> getGauges();
+
+    // per phase "count", "mean", "p50", "p99", "p999" and "max" in microseconds, keyed like "accept.p99"
+    Map<String, Long> getLatencies();
+
+    // all of the above as text, the same as ServerInterface.dumpMetrics
+    String dump();
+}
@@ -1,3 +1,4 @@
+import java.nio.file.Path;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.random.RandomGenerator;
@@ -5,47 +6,112 @@ import java.util.random.RandomGenerator;
 /**
  * The PaxosServerCreator class is responsible for creating and binding the Paxos servers
  * within the RMI registry. It also configures the acceptors and learners for each server.
+ * Each server runs one replica of every Paxos group the keyspace is split into, see ShardedServer.
+ * Run with -Dpaxos.transport=nio to serve and connect the servers over the NIO transport instead of RMI,
+ * with -Dpaxos.store=mapped to keep the key-value data in memory-mapped files instead of on the heap,
+ * and with -Dpaxos.learn=all to have every acceptor tell every learner about each accepted value instead of
+ * the proposer telling them once the value is chosen.
  */
 public class PaxosServerCreator {
 
     /**
      * The main method to launch the creation and binding process of the Paxos servers.
      *
-     * @param args Command-line arguments (unused in this context).
+     * @param args Command-line arguments, all optional: args[0] rounds each server may run concurrently,
+     *             args[1] most commands per batch, args[2] milliseconds a batch waits to fill up,
+     *             args[3] directory for the write-ahead logs, state stays in memory without it or with "-",
+     *             args[4] number of Paxos groups the keyspace is split into,
+     *             args[5] number of spare servers started after the five members, they follow the log as
+     *             learners until a CONFIG command makes them members, e.g. "CONFIG 0 1 3 4 5" replaces server 2,
+     *             args[6] quorum sizes of phase 1 and phase 2 as "q1/q2", e.g. "4/2", q1 + q2 must exceed five,
+     *             majorities without it or with "-",
+     *             args[7] members that are witnesses without data, comma separated, e.g. "3,4".
      */
     public static void main(String[] args) {
         try {
             int numServers = 5; // Total number of servers
             int basePort = 5000; // Starting port number
+            int maxInFlight = args.length > 0 ? Integer.parseInt(args[0]) : Server.DEFAULT_MAX_IN_FLIGHT;
+            int maxBatchSize = args.length > 1 ? Integer.parseInt(args[1]) : Server.DEFAULT_MAX_BATCH_SIZE;
+            long maxBatchDelayMs = args.length > 2 ? Long.parseLong(args[2]) : Server.DEFAULT_MAX_BATCH_DELAY_MS;
+            Path dataDir = args.length > 3 && !args[3].equals("-") ? Path.of(args[3]) : null;
+            int numGroups = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+            int numSpares = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+            int[] members = new int[numServers];
+            for (int i = 0; i < numServers; i++) members[i] = i;
+            // majorities unless given
+            int q1 = 0;
+            int q2 = 0;
+            if (args.length > 6 && !args[6].equals("-")) {
+                String[] quorums = args[6].split("/");
+                q1 = Integer.parseInt(quorums[0]);
+                q2 = Integer.parseInt(quorums[1]);
+            }
+            int[] witnesses = new int[0];
+            if (args.length > 7 && !args[7].equals("-")) {
+                String[] ids = args[7].split(",");
+                witnesses = new int[ids.length];
+                for (int i = 0; i < ids.length; i++) witnesses[i] = Integer.parseInt(ids[i].trim());
+            }
+            // refuses quorums that don't intersect before any server starts
+            Configuration config = new Configuration(0, members, witnesses, q1, q2);
+            System.out.println("Members " + config.describe());
+            // members and spares, every id gets a server
+            int numIds = numServers + numSpares;
+            boolean nio = System.getProperty("paxos.transport", "rmi").equals("nio");
 
-            Server[] servers = new Server[numServers];
+            ShardedServer[] servers = new ShardedServer[numIds];
 
             // Create and bind servers
-            for (int serverId = 0; serverId < numServers; serverId++) {
+            for (int serverId = 0; serverId < numIds; serverId++) {
                 int port = basePort + serverId; // Increment port for each server
 
                 // Create server instance
-                servers[serverId] = new Server(serverId, numServers);
+                servers[serverId] = new ShardedServer(serverId, numIds, config, numGroups, maxInFlight, maxBatchSize,
+                        maxBatchDelayMs, dataDir == null ? null : dataDir.resolve("server-" + serverId));
 
-                // Create and Bind the server to the RMI registry
-                Registry registry = LocateRegistry.createRegistry(port);
-                registry.rebind("KVStore", servers[serverId]);
+                if (nio) {
+                    // clients only, peer traffic goes to the group replicas
+                    new NioServer(port, servers[serverId], null, null, null, BufferPool.DEFAULT);
+                    // the replicas of every group talk to each other on ports of their own
+                    for (int g = 0; g < numGroups; g++) {
+                        new NioServer(groupPort(basePort, numIds, g, serverId), servers[serverId].group(g));
+                    }
+                } else {
+                    // Create and Bind the server to the RMI registry
+                    Registry registry = LocateRegistry.createRegistry(port);
+                    registry.rebind("KVStore", servers[serverId]);
+                }
 
                 System.out.println("Server " + serverId + " is ready at port " + port);
             }
 
-            // Set acceptors and learners for each server
-            for (int serverId = 0; serverId < numServers; serverId++) {
-                AcceptorInterface[] acceptors = new AcceptorInterface[numServers];
-                LearnerInterface[] learners = new LearnerInterface[numServers];
-                for (int i = 0; i < numServers; i++) {
-                    if (i != serverId) {
-                        acceptors[i] = servers[i];
-                        learners[i] = servers[i];
+            // Set the peers of every node and the acceptors and learners of every group replica
+            for (int serverId = 0; serverId < numIds; serverId++) {
+                ServerInterface[] peers = new ServerInterface[numIds];
+                for (int i = 0; i < numIds; i++) {
+                    if (i == serverId) continue;
+                    peers[i] = nio ? new NioPeer("localhost", basePort + i) : servers[i];
+                }
+                servers[serverId].setPeers(peers);
+
+                for (int g = 0; g < numGroups; g++) {
+                    AcceptorInterface[] acceptors = new AcceptorInterface[numIds];
+                    LearnerInterface[] learners = new LearnerInterface[numIds];
+                    for (int i = 0; i < numIds; i++) {
+                        if (i == serverId) continue;
+                        if (nio) {
+                            NioPeer peer = new NioPeer("localhost", groupPort(basePort, numIds, g, i));
+                            acceptors[i] = peer;
+                            learners[i] = peer;
+                        } else {
+                            acceptors[i] = servers[i].group(g);
+                            learners[i] = servers[i].group(g);
+                        }
                     }
+                    servers[serverId].group(g).setAcceptors(acceptors);
+                    servers[serverId].group(g).setLearners(learners);
                 }
-                servers[serverId].setAcceptors(acceptors);
-                servers[serverId].setLearners(learners);
             }
 
             // randomly change server status to simulate fault
@@ -53,7 +119,7 @@ public class PaxosServerCreator {
                 // random server and random status
                 int serverId = RandomGenerator.getDefault().nextInt()%5;
                 if(serverId < 0) serverId += numServers;
-                servers[serverId].serviceDown = RandomGenerator.getDefault().nextInt()%2==0;
+                servers[serverId].setServiceDown(RandomGenerator.getDefault().nextInt()%2==0);
                 Thread.sleep(5000);
             }
 
@@ -62,4 +128,9 @@ public class PaxosServerCreator {
             e.printStackTrace();
         }
     }
+
+    // port the replica of a group on a server listens on for its peers, after the client ports of all servers
+    private static int groupPort(int basePort, int numServers, int group, int serverId) {
+        return basePort + numServers * (group + 1) + serverId;
+    }
 }
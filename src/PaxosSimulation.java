@@ -0,0 +1,468 @@
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Fault-injection runs of an in-process cluster over a SimulatedNetwork, reproducible from a seed: the seed fixes
+ * the fault schedule, every client's sequence of commands and the network's draws per link. Clients put and read
+ * a few keys while servers crash and restart from their logs, get partitioned, lose messages or slow down. For
+ * every fault the run reports the throughput before and during it, the longest stall and how long until throughput
+ * was back to half of what it was; at the end throughput and latency percentiles for the whole run, whether the
+ * replicas agree, and whether the history of every client call is linearizable.
+ * Threads still run on real time, so two runs of a seed see the same faults but not the same interleavings.
+ */
+public class PaxosSimulation {
+    private static final String[] FAULT_KINDS = {"crash", "leader", "partition", "drop", "slow"};
+    // keys the clients share, few enough that they keep running into each other
+    private static final int NUM_KEYS = 16;
+    // a command is retried on other servers until this passes, then its outcome counts as unknown
+    private static final long OP_TIMEOUT_MS = 5000;
+    private static final long RETRY_DELAY_MS = 20;
+    // before the first fault and between two
+    private static final long WARMUP_MS = 2000;
+    private static final long FAULT_GAP_MS = 2000;
+    private static final long MIN_FAULT_MS = 1000;
+    private static final long MAX_FAULT_MS = 3000;
+    // throughput is counted in buckets of this size to find when it recovered
+    private static final long BUCKET_MS = 100;
+    private static final int SNAPSHOT_INTERVAL = 500;
+
+    /**
+     * Run one simulation.
+     *
+     * @param args All optional: args[0] seed, args[1] number of servers (5), args[2] seconds to run (20),
+     *             args[3] faults to inject: none, crash, leader, partition, drop, slow or mixed (mixed),
+     *             args[4] client threads (16), args[5] share of reads (0.5),
+     *             args[6] one-way latency between servers in milliseconds (1), with up to as much jitter,
+     *             args[7] quorum sizes as "q1/q2", majorities without it or with "-".
+     */
+    public static void main(String[] args) throws Exception {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        int numServers = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        long durationMs = args.length > 2 ? Long.parseLong(args[2]) * 1000 : 20_000;
+        String faults = args.length > 3 ? args[3] : "mixed";
+        int numClients = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+        double readShare = args.length > 5 ? Double.parseDouble(args[5]) : 0.5;
+        long latencyMs = args.length > 6 ? Long.parseLong(args[6]) : 1;
+        int q1 = 0;
+        int q2 = 0;
+        if (args.length > 7 && !args[7].equals("-")) {
+            String[] quorums = args[7].split("/");
+            q1 = Integer.parseInt(quorums[0]);
+            q2 = Integer.parseInt(quorums[1]);
+        }
+        if (!faults.equals("none") && !faults.equals("mixed") && !Arrays.asList(FAULT_KINDS).contains(faults)) {
+            System.err.println("Usage: java PaxosSimulation [seed] [servers] [seconds] "
+                    + "[none|crash|leader|partition|drop|slow|mixed] [clients] [read share] [latency ms] [q1/q2]");
+            System.exit(1);
+        }
+        int[] members = new int[numServers];
+        for (int i = 0; i < numServers; i++) members[i] = i;
+        Configuration config = new Configuration(0, members, new int[0], q1, q2);
+
+        boolean ok = new PaxosSimulation(seed, numServers, config, durationMs, faults, numClients, readShare, latencyMs).run();
+        // the servers are exported RMI objects, they keep the JVM alive
+        System.exit(ok ? 0 : 1);
+    }
+
+    private final long seed;
+    private final SimulatedNetwork network;
+    private final Configuration config;
+    private final long durationMs;
+    private final String faults;
+    private final int numClients;
+    private final double readShare;
+    private final long latencyMs;
+    // random streams split off the seed in a fixed order
+    private final SplittableRandom faultRandom;
+    private final SplittableRandom[] clientRandoms;
+
+    // faults and heals in the order they happened
+    private final List<FaultEvent> events = Collections.synchronizedList(new ArrayList<>());
+    // every client call, for the checker
+    private final List<LinearizabilityChecker.Call> history = Collections.synchronizedList(new ArrayList<>());
+    private long startNanos;
+    // the servers report every lost message on System.out, that goes to a file and the report here
+    private final PrintStream report = System.out;
+    // runs the clients' calls into the servers
+    private final ExecutorService calls = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "client-call");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private PaxosSimulation(long seed, int numServers, Configuration config, long durationMs, String faults,
+                            int numClients, double readShare, long latencyMs) throws Exception {
+        this.seed = seed;
+        this.config = config;
+        this.durationMs = durationMs;
+        this.faults = faults;
+        this.numClients = numClients;
+        this.readShare = readShare;
+        this.latencyMs = latencyMs;
+        SplittableRandom random = new SplittableRandom(seed);
+        network = new SimulatedNetwork(numServers, config, SNAPSHOT_INTERVAL, random.nextLong());
+        network.setLatency(latencyMs, latencyMs);
+        faultRandom = random.split();
+        clientRandoms = new SplittableRandom[numClients];
+        for (int i = 0; i < numClients; i++) clientRandoms[i] = random.split();
+    }
+
+    // a fault injected or healed, at ms since the start
+    private static class FaultEvent {
+        final long atMs;
+        final String description;
+
+        FaultEvent(long atMs, String description) {
+            this.atMs = atMs;
+            this.description = description;
+        }
+    }
+
+    // a fault of the schedule, injected at atMs and healed durationMs later
+    private static class Fault {
+        final String kind;
+        final long atMs;
+        final long durationMs;
+        // server to crash, or the servers cut off by a partition
+        final int[] targets;
+        final double dropRate;
+
+        Fault(String kind, long atMs, long durationMs, int[] targets, double dropRate) {
+            this.kind = kind;
+            this.atMs = atMs;
+            this.durationMs = durationMs;
+            this.targets = targets;
+            this.dropRate = dropRate;
+        }
+    }
+
+    private boolean run() throws Exception {
+        Path log = network.dataRoot().resolve("servers.log");
+        System.setOut(new PrintStream(Files.newOutputStream(log), true));
+        report.printf("seed %d, %d servers, %d s, faults %s, %d clients, %.0f%% reads, latency %d+%d ms, "
+                        + "quorums %d/%d%n", seed, network.numServers(), durationMs / 1000, faults, numClients,
+                readShare * 100, latencyMs, latencyMs, config.q1, config.q2);
+        report.println("server output in " + log);
+        List<Fault> schedule = schedule();
+        ExecutorService threads = Executors.newFixedThreadPool(numClients + 1);
+        startNanos = System.nanoTime();
+        List<Future<ClientStats>> clients = new ArrayList<>();
+        for (int c = 0; c < numClients; c++) {
+            int client = c;
+            clients.add(threads.submit(() -> runClient(client)));
+        }
+        Future<?> injector = threads.submit(() -> {
+            injectFaults(schedule);
+            return null;
+        });
+        ClientStats total = new ClientStats();
+        for (Future<ClientStats> client : clients) total.add(client.get());
+        injector.get();
+        threads.shutdown();
+        threads.awaitTermination(1, TimeUnit.SECONDS);
+
+        printFaults(total);
+        printTotals(total);
+        boolean agree = replicasAgree();
+        long checkStart = System.nanoTime();
+        String problem = LinearizabilityChecker.check(history);
+        long checkMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - checkStart);
+        if (problem == null) {
+            report.printf("linearizable: yes, %d calls on %d keys checked in %d ms%n", history.size(), NUM_KEYS, checkMs);
+        } else {
+            report.println("linearizable: NO, " + problem);
+        }
+        return agree && problem == null;
+    }
+
+    // the faults of the whole run, drawn from the seed before anything starts
+    private List<Fault> schedule() {
+        List<Fault> schedule = new ArrayList<>();
+        if (faults.equals("none")) return schedule;
+        int numServers = network.numServers();
+        long at = WARMUP_MS;
+        for (int i = 0; ; i++) {
+            long duration = MIN_FAULT_MS + faultRandom.nextLong(MAX_FAULT_MS - MIN_FAULT_MS + 1);
+            if (at + duration > durationMs) break;
+            String kind = faults.equals("mixed") ? FAULT_KINDS[i % FAULT_KINDS.length] : faults;
+            // a minority, so the rest can go on
+            int[] targets = new int[Math.max(1, (numServers - 1) / 2)];
+            List<Integer> ids = new ArrayList<>();
+            for (int id = 0; id < numServers; id++) ids.add(id);
+            for (int t = 0; t < targets.length; t++) targets[t] = ids.remove(faultRandom.nextInt(ids.size()));
+            if (kind.equals("crash")) targets = new int[]{targets[0]};
+            double dropRate = 0.05 + faultRandom.nextDouble() * 0.25;
+            schedule.add(new Fault(kind, at, duration, targets, dropRate));
+            at += duration + FAULT_GAP_MS;
+        }
+        return schedule;
+    }
+
+    private void injectFaults(List<Fault> schedule) throws Exception {
+        for (Fault fault : schedule) {
+            sleepUntil(fault.atMs);
+            List<Integer> crashed = new ArrayList<>();
+            switch (fault.kind) {
+                case "crash" -> crashed.add(fault.targets[0]);
+                // whoever leads right now, not known up front
+                case "leader" -> crashed.add(Math.max(0, network.leader()));
+                case "partition" -> {
+                    int[] sides = new int[network.numServers()];
+                    for (int target : fault.targets) sides[target] = 1;
+                    int leader = network.leader();
+                    network.partition(sides);
+                    event("partition " + Arrays.toString(fault.targets) + " off, leader " + leader);
+                }
+                case "drop" -> {
+                    network.setDropRate(fault.dropRate);
+                    event(String.format("drop %.0f%% of messages", fault.dropRate * 100));
+                }
+                case "slow" -> {
+                    long slow = Math.max(10, latencyMs * 20);
+                    network.setLatency(slow, slow);
+                    event("latency " + slow + "+" + slow + " ms");
+                }
+                default -> throw new IllegalArgumentException("Unknown fault: " + fault.kind);
+            }
+            for (int id : crashed) {
+                network.crash(id);
+                event("crash server " + id);
+            }
+            sleepUntil(fault.atMs + fault.durationMs);
+            switch (fault.kind) {
+                case "crash", "leader" -> {
+                    for (int id : crashed) {
+                        long started = System.nanoTime();
+                        network.restart(id);
+                        event("restart server " + id + " (replayed in "
+                                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms)");
+                    }
+                }
+                case "partition" -> {
+                    network.heal();
+                    event("heal partition");
+                }
+                case "drop" -> {
+                    network.setDropRate(0);
+                    event("drop no messages");
+                }
+                case "slow" -> {
+                    network.setLatency(latencyMs, latencyMs);
+                    event("latency " + latencyMs + "+" + latencyMs + " ms");
+                }
+                default -> throw new IllegalArgumentException("Unknown fault: " + fault.kind);
+            }
+        }
+    }
+
+    private void event(String description) {
+        events.add(new FaultEvent(nowMs(), description));
+    }
+
+    // completed calls of one client or of all of them
+    private static class ClientStats {
+        final List<Long> writeNanos = new ArrayList<>();
+        final List<Long> readNanos = new ArrayList<>();
+        // ms since the start a call completed at
+        final List<Long> completedMs = new ArrayList<>();
+        int unknown;
+
+        void add(ClientStats other) {
+            writeNanos.addAll(other.writeNanos);
+            readNanos.addAll(other.readNanos);
+            completedMs.addAll(other.completedMs);
+            unknown += other.unknown;
+        }
+    }
+
+    // puts of unique values and linearizable gets on random keys, each call retried on other servers until it works
+    private ClientStats runClient(int client) throws InterruptedException {
+        SplittableRandom commands = clientRandoms[client];
+        // which server to try is up to the faults, so it comes from a stream of its own
+        SplittableRandom routing = commands.split();
+        ClientStats stats = new ClientStats();
+        long clientId = client + 1;
+        long seq = 0;
+        int server = routing.nextInt(network.numServers());
+        while (nowMs() < durationMs) {
+            String key = "key" + commands.nextInt(NUM_KEYS);
+            boolean read = commands.nextDouble() < readShare;
+            Operation operation;
+            String value = null;
+            if (read) {
+                operation = Operation.get(key.getBytes(StandardCharsets.UTF_8));
+            } else {
+                value = client + "-" + (++seq);
+                operation = Operation.createOperation("PUT " + key + " " + value);
+                // retries keep the sequence number, the servers' sessions apply the put once
+                operation.clientId = clientId;
+                operation.seq = seq;
+                operation.ackSeq = seq;
+            }
+            long invoked = System.nanoTime();
+            long deadline = invoked + TimeUnit.MILLISECONDS.toNanos(OP_TIMEOUT_MS);
+            Result result = null;
+            while (System.nanoTime() < deadline) {
+                Server target = network.server(server);
+                // on a thread of its own, a call the server never answers times out like a socket would
+                Future<Result> call = calls.submit(() -> read ? target.query(operation, false) : target.sendCommand(operation));
+                try {
+                    Result reply = call.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (reply.status() != Result.Status.FAILED) {
+                        result = reply;
+                        break;
+                    }
+                } catch (ExecutionException e) {
+                    // down or cut off, another server may do
+                } catch (TimeoutException e) {
+                    // still running there, the outcome stays unknown
+                    break;
+                }
+                server = routing.nextInt(network.numServers());
+                Thread.sleep(RETRY_DELAY_MS);
+            }
+            long completed = System.nanoTime();
+            if (result == null) {
+                stats.unknown++;
+                // a read that never returned tells nothing, a put may still take effect
+                history.add(new LinearizabilityChecker.Call(key, !read, value, invoked, LinearizabilityChecker.NEVER));
+                continue;
+            }
+            if (read) {
+                byte[] found = result.value();
+                value = found == null ? null : new String(found, StandardCharsets.UTF_8);
+                stats.readNanos.add(completed - invoked);
+            } else {
+                stats.writeNanos.add(completed - invoked);
+            }
+            stats.completedMs.add(TimeUnit.NANOSECONDS.toMillis(completed - startNanos));
+            history.add(new LinearizabilityChecker.Call(key, !read, value, invoked, completed));
+        }
+        return stats;
+    }
+
+    // one line per fault event: throughput in the second before and until the next event, the longest time
+    // without a completed call, and when throughput was back to half of what it was before
+    private void printFaults(ClientStats total) {
+        if (events.isEmpty()) return;
+        long[] completed = total.completedMs.stream().mapToLong(Long::longValue).sorted().toArray();
+        int[] buckets = new int[(int) (durationMs / BUCKET_MS) + 2];
+        for (long ms : completed) buckets[(int) Math.min(buckets.length - 1, ms / BUCKET_MS)]++;
+        report.println("   at ms  event                                    before ops/s  during ops/s  stall ms  recovered ms");
+        for (int i = 0; i < events.size(); i++) {
+            FaultEvent event = events.get(i);
+            long end = i + 1 < events.size() ? events.get(i + 1).atMs : durationMs;
+            double before = count(completed, event.atMs - 1000, event.atMs);
+            double during = end > event.atMs ? count(completed, event.atMs, end) * 1000.0 / (end - event.atMs) : 0;
+            long stall = 0;
+            long previous = event.atMs;
+            for (long ms : completed) {
+                if (ms < event.atMs) continue;
+                if (ms >= end) break;
+                stall = Math.max(stall, ms - previous);
+                previous = ms;
+            }
+            stall = Math.max(stall, end - previous);
+            String recovered = "-";
+            for (long ms = event.atMs; ms + BUCKET_MS <= end && before > 0; ms += BUCKET_MS) {
+                if (count(completed, ms, ms + BUCKET_MS) * (1000.0 / BUCKET_MS) >= before / 2) {
+                    recovered = String.valueOf(ms - event.atMs);
+                    break;
+                }
+            }
+            report.printf("%8d  %-40s %12.0f  %12.0f  %8d  %12s%n", event.atMs, event.description, before, during,
+                    stall, recovered);
+        }
+    }
+
+    // completed calls in [fromMs, toMs)
+    private static int count(long[] completed, long fromMs, long toMs) {
+        int n = 0;
+        for (long ms : completed) {
+            if (ms >= fromMs && ms < toMs) n++;
+        }
+        return n;
+    }
+
+    private void printTotals(ClientStats total) {
+        int calls = total.writeNanos.size() + total.readNanos.size();
+        report.printf("%d calls, %d puts, %d gets, %d unknown, %.0f ops/s%n", calls + total.unknown,
+                total.writeNanos.size(), total.readNanos.size(), total.unknown, calls * 1000.0 / durationMs);
+        report.println("latency     p50 us    p99 us  p99.9 us    max us");
+        printLatencies("put", total.writeNanos);
+        printLatencies("get", total.readNanos);
+    }
+
+    private void printLatencies(String name, List<Long> nanos) {
+        if (nanos.isEmpty()) return;
+        long[] sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        report.printf("%-8s %9d %9d %9d %9d%n", name, percentile(sorted, 0.5), percentile(sorted, 0.99),
+                percentile(sorted, 0.999), sorted[sorted.length - 1] / 1000);
+    }
+
+    // in microseconds
+    private static long percentile(long[] sorted, double p) {
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1000;
+    }
+
+    // with every fault healed, a linearizable read of every key must find the same value on every server
+    private boolean replicasAgree() throws RemoteException {
+        network.heal();
+        network.setDropRate(0);
+        network.setLatency(latencyMs, latencyMs);
+        for (int id = 0; id < network.numServers(); id++) network.restart(id);
+        int differences = 0;
+        for (int k = 0; k < NUM_KEYS; k++) {
+            Operation get = Operation.get(("key" + k).getBytes(StandardCharsets.UTF_8));
+            String first = null;
+            for (int id = 0; id < network.numServers(); id++) {
+                byte[] found = settledRead(network.server(id), get).value();
+                String value = found == null ? null : new String(found, StandardCharsets.UTF_8);
+                if (id == 0) first = value;
+                else if (!Objects.equals(first, value)) differences++;
+            }
+        }
+        report.println("replicas agree: " + (differences == 0 ? "yes" : "NO, " + differences + " differences"));
+        return differences == 0;
+    }
+
+    // right after healing a server may still fail to reach a quorum
+    private static Result settledRead(Server server, Operation get) throws RemoteException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(OP_TIMEOUT_MS);
+        while (true) {
+            Result result = server.query(get, false);
+            if (result.status() != Result.Status.FAILED || System.nanoTime() > deadline) return result;
+            try {
+                Thread.sleep(RETRY_DELAY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return result;
+            }
+        }
+    }
+
+    private long nowMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private void sleepUntil(long ms) throws InterruptedException {
+        long wait = ms - nowMs();
+        if (wait > 0) Thread.sleep(wait);
+    }
+}
@@ -1,15 +1,22 @@
 import java.io.Serializable;
-import java.util.AbstractMap;
 
 public class PromiseMsg implements Serializable {
     // agree or not
     boolean ack;
     // attach for re-propose
-    Integer promisedNum;
-    AbstractMap.SimpleEntry<Integer, Operation> acceptedVal;
-    public PromiseMsg(boolean ack, Integer promisedNum, AbstractMap.SimpleEntry<Integer, Operation> acceptedVal){
+    int promisedNum;
+    // value the acceptor accepted in the round and its ballot, null and 0 if none
+    int acceptedBallot;
+    Operation acceptedValue;
+    // highest round this acceptor has accepted any value in, lets the proposer know if the promise is safe for later rounds
+    int lastAcceptedRound;
+    // the round is older than the acceptor's snapshot, the proposer is behind and should install one
+    boolean compacted;
+    public PromiseMsg(boolean ack, int promisedNum, int acceptedBallot, Operation acceptedValue, int lastAcceptedRound){
         this.ack = ack;
         this.promisedNum = promisedNum;
-        this.acceptedVal = acceptedVal;
+        this.acceptedBallot = acceptedBallot;
+        this.acceptedValue = acceptedValue;
+        this.lastAcceptedRound = lastAcceptedRound;
     }
 }
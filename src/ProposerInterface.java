@@ -7,8 +7,9 @@ import java.rmi.RemoteException;
  */
 public interface ProposerInterface extends Remote {
 
-  // start a complete paxos instance, run whole process from propose to accept, including re-propose
-  String propose(int round, int proposalId, Operation operation) throws RemoteException;
+  // start a complete paxos instance, run whole process from propose to accept, including re-propose;
+  // null once applied, applying answers the commands, otherwise the failure
+  Result propose(int round, int proposalId, Operation operation) throws RemoteException;
 
   // phase 1 communicate with acceptors and return operation for phase 2
   Operation prepare(int round, int proposalId) throws RemoteException;
@@ -0,0 +1,164 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+// outcome of a client command, turned into text only by the client
+public class Result implements Serializable {
+    public enum Status { OK, NOT_FOUND, FAILED }
+
+    // why a command FAILED, NONE otherwise
+    public enum ErrorCode { NONE, NO_MAJORITY, OUTCOME_UNKNOWN, ALREADY_ANSWERED, INVALID_INPUT, CONDITION_FAILED, CROSS_GROUP }
+
+    private static final Result OK = new Result(Status.OK, null, ErrorCode.NONE);
+    private static final Result NOT_FOUND = new Result(Status.NOT_FOUND, null, ErrorCode.NONE);
+    private static final Result[] FAILED = new Result[ErrorCode.values().length];
+    static {
+        for (ErrorCode error : ErrorCode.values()) FAILED[error.ordinal()] = new Result(Status.FAILED, null, error);
+    }
+
+    final Status status;
+    // value read by a GET, null for everything else
+    final byte[] value;
+    final ErrorCode error;
+    // values read by an MGET in the order of its keys, null for missing keys; the entries found by a SCAN
+    final byte[][] values;
+    // keys of the entries found by a SCAN, null for everything else
+    final byte[][] keys;
+    // key a SCAN stopped at because it hit its limit, null if the whole range was returned
+    final byte[] next;
+
+    private Result(Status status, byte[] value, ErrorCode error) {
+        this(status, value, error, null, null, null);
+    }
+
+    private Result(Status status, byte[] value, ErrorCode error, byte[][] keys, byte[][] values, byte[] next) {
+        this.status = status;
+        this.value = value;
+        this.error = error;
+        this.keys = keys;
+        this.values = values;
+        this.next = next;
+    }
+
+    // results without a value are shared, the commit path allocates nothing for them
+    public static Result ok() {
+        return OK;
+    }
+
+    public static Result value(byte[] value) {
+        return value == null ? NOT_FOUND : new Result(Status.OK, value, ErrorCode.NONE);
+    }
+
+    public static Result values(byte[][] values) {
+        return new Result(Status.OK, null, ErrorCode.NONE, null, values, null);
+    }
+
+    public static Result entries(byte[][] keys, byte[][] values, byte[] next) {
+        return new Result(Status.OK, null, ErrorCode.NONE, keys, values, next);
+    }
+
+    public static Result notFound() {
+        return NOT_FOUND;
+    }
+
+    public static Result failed(ErrorCode error) {
+        return FAILED[error.ordinal()];
+    }
+
+    public Status status() {
+        return status;
+    }
+
+    public byte[] value() {
+        return value;
+    }
+
+    public ErrorCode error() {
+        return error;
+    }
+
+    public byte[][] values() {
+        return values;
+    }
+
+    public byte[][] keys() {
+        return keys;
+    }
+
+    public byte[] next() {
+        return next;
+    }
+
+    // whether this carries the values of an MGET or the entries of a SCAN
+    public boolean isMulti() {
+        return values != null;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(status.ordinal());
+        out.writeByte(error.ordinal());
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+        out.writeBoolean(isMulti());
+        if (!isMulti()) return;
+        out.writeInt(values.length);
+        out.writeBoolean(keys != null);
+        for (int i = 0; i < values.length; i++) {
+            if (keys != null) writeBytes(out, keys[i]);
+            writeBytes(out, values[i]);
+        }
+        writeBytes(out, next);
+    }
+
+    public static Result readFrom(DataInput in) throws IOException {
+        int status = in.readByte();
+        int error = in.readByte();
+        byte[] value = null;
+        if (in.readBoolean()) {
+            value = new byte[in.readInt()];
+            in.readFully(value);
+        }
+        if (!in.readBoolean()) return of(status, error, value);
+        byte[][] values = new byte[in.readInt()][];
+        byte[][] keys = in.readBoolean() ? new byte[values.length][] : null;
+        for (int i = 0; i < values.length; i++) {
+            if (keys != null) keys[i] = readBytes(in);
+            values[i] = readBytes(in);
+        }
+        return new Result(Status.OK, null, ErrorCode.NONE, keys, values, readBytes(in));
+    }
+
+    // length-prefixed, -1 for null
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        out.writeInt(bytes == null ? -1 : bytes.length);
+        if (bytes != null) out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    // rebuild a decoded result, sharing the common ones
+    static Result of(int status, int error, byte[] value) {
+        if (value != null) return new Result(Status.values()[status], value, ErrorCode.values()[error]);
+        if (status == Status.OK.ordinal()) return OK;
+        if (status == Status.NOT_FOUND.ordinal()) return NOT_FOUND;
+        return FAILED[error];
+    }
+
+    @Override
+    public String toString() {
+        if (isMulti()) return status + " " + values.length + (next != null ? " entries, more" : " entries");
+        return status == Status.FAILED ? status + " " + error : value == null ? status.toString()
+                : status + " " + new String(value, StandardCharsets.UTF_8);
+    }
+}
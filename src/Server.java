@@ -1,55 +1,425 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.AbstractMap;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 /**
  * Implementation of a Server class that represents a node in a Paxos distributed consensus system.
  * This server plays the role of Proposer, Acceptor, and Learner in the Paxos algorithm, and it also handles key-value store operations.
+ * Up to maxInFlight rounds run concurrently, they may be chosen out of order but are always applied in log order.
  */
-public class Server extends UnicastRemoteObject implements ServerInterface, ProposerInterface, AcceptorInterface, LearnerInterface {
-    private final ConcurrentHashMap<String, String> kvStore = new ConcurrentHashMap<>();
-    private AcceptorInterface[] acceptors;
+public class Server extends UnicastRemoteObject implements ServerInterface, ProposerInterface, AcceptorInterface, LearnerInterface, LeaderInterface {
+    // default number of rounds a server drives at the same time
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    // default limits for packing queued client commands into one round
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    public static final long DEFAULT_MAX_BATCH_DELAY_MS = 0;
+    // how long a proposer waits for earlier rounds to be applied before it helps to fill the gap
+    private static final long APPLY_WAIT_MS = 200;
+    // how long a caller waits for the log to be applied up to a round, catching up included, before it gives up
+    private static final long ROUND_WAIT_MS = 5000;
+    // default number of applied rounds between two snapshots
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 1000;
+    private static final String SNAPSHOT_FILE = "snapshot";
+    // a snapshot being written here, and one being copied from a peer
+    private static final String SNAPSHOT_TMP = SNAPSHOT_FILE + ".tmp";
+    private static final String SNAPSHOT_INCOMING = SNAPSHOT_FILE + ".incoming";
+    // most bytes of a snapshot a peer sends in one reply
+    private static final int SNAPSHOT_CHUNK = 1024 * 1024;
+    // most rounds a peer sends in one catch-up reply
+    private static final int CATCH_UP_CHUNK = 256;
+    // how long a phase waits for peers before it gives up on the ones that haven't answered
+    private static final long RPC_TIMEOUT_MS = 1000;
+    // how long a caller waits for the result of its command, several rounds of retries fit in
+    private static final long COMMAND_TIMEOUT_MS = 10_000;
+    // most client sessions kept, the least recently used one is dropped beyond that
+    private static final int MAX_SESSIONS = 10000;
+    // how often the leader tells the others it is alive
+    private static final long HEARTBEAT_INTERVAL_MS = 50;
+    // followers give up on a leader they haven't heard from for this long, plus a random share of it
+    private static final long LEADER_TIMEOUT_MS = 300;
+    // a proposer that lost a ballot race waits a random time below this, doubled per retry up to MAX_BACKOFF_MS
+    private static final long BASE_BACKOFF_MS = 5;
+    private static final long MAX_BACKOFF_MS = 100;
+    // rounds between applying a CONFIG and its members taking over; a proposer only runs a round once every round
+    // this far before it is applied, so it always knows who votes, which also bounds how far it can run ahead
+    public static final int CONFIG_WINDOW = 64;
+    // -Dpaxos.trace=true prints every step of every command, tagged with its operation id, on each server it passes
+    private static final boolean TRACE = Boolean.getBoolean("paxos.trace");
+    // by default a proposer tells the other learners once a quorum accepted, in one message per peer for all
+    // the rounds chosen since its last one; -Dpaxos.learn=all has every acceptor tell every learner instead,
+    // n squared messages a round
+    private static final boolean LEARN_FROM_ALL = System.getProperty("paxos.learn", "proposer").equals("all");
+
+    // the state machine, pick the engine with -Dpaxos.store=heap|mapped
+    private final KVStoreInterface kvStore;
+    // replicated along with kvStore, answers retried commands, needs writeLock; least recently applied to first,
+    // only applying moves a session to the end so every replica evicts the same ones
+    private final LinkedHashMap<Long, ClientSession> sessions = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ClientSession> eldest) {
+            return size() > MAX_SESSIONS;
+        }
+    };
+    private volatile AcceptorInterface[] acceptors;
     private LearnerInterface[] learners;
-    // doesn't support dynamic members
+    // size of the id space, ballots and leadership are spread over it; which servers vote is up to configs
     private final int numServers;
     private final int serverId;
-    private int paxosRound;
-    // exclude itself, if 2n+1 servers, it would be n rather than n+1
-    private final int majorityNum;
+    // next round to apply, only moves forward under writeLock
+    private volatile int paxosRound;
+    // next round this server hands out to its own proposals
+    private final AtomicInteger nextRound = new AtomicInteger();
+    // highest round seen from any proposer
+    private final AtomicInteger highestSeenRound = new AtomicInteger(-1);
+    // every configuration so far, ordered by fromRound, a proposer may still be finishing a round of an old one;
+    // replaced as a whole under writeLock when a CONFIG is applied
+    private volatile List<Configuration> configs;
+    // named a witness by a configuration: an acceptor only, it applies nothing but CONFIGs and never proposes
+    private volatile boolean witness;
+
+    // paxos logs for every instances, from logStart on
+    private final InstanceLog instances;
+
+    // bounds the number of rounds this server proposes concurrently
+    private final int maxInFlight;
+    // rounds being proposed right now, guarded by windowLock
+    private int inFlight;
+    private final ReentrantLock windowLock = new ReentrantLock();
+    // signalled when a round in the window frees up or queued commands get taken into a batch
+    private final Condition windowChanged = windowLock.newCondition();
 
-    // paxos logs for every instances
-    private final Map<Integer, PaxosInstance> instances;
+    // client commands waiting to be packed into a batch
+    private final LinkedBlockingQueue<PendingCommand> batchQueue = new LinkedBlockingQueue<>();
+    // commands proposed by this server and not applied yet, by operation id
+    private final ConcurrentHashMap<Long, PendingCommand> pending = new ConcurrentHashMap<>();
+    private final int maxBatchSize;
+    // how long a batch waits for more commands before it is proposed, 0 only takes what is already queued
+    private final long maxBatchDelayMs;
 
-    // lock only for learn, can learn during other operations like propose or accept
-    private final ReentrantLock learnLock = new ReentrantLock();
+    // lock for acceptor state, promise and accept are local and short so they simply run one at a time
+    private final ReentrantLock acceptorLock = new ReentrantLock();
 
     // write lock for applying operation
     private final ReentrantLock writeLock = new ReentrantLock();
+    // signalled whenever paxosRound moves forward
+    private final Condition applied = writeLock.newCondition();
+
+    // ids for proposed operations, seeded with time so they don't repeat after a restart
+    private final AtomicLong operationIds;
+
+    // runs calls to peers concurrently, stragglers finish here after the phase has moved on
+    private final ExecutorService rpcExecutor;
+
+    // durable acceptor and learner state, null keeps everything on the heap only
+    private final WriteAheadLog log;
+
+    // snapshots and log compaction
+    private final Path dataDir;
+    // where snapshots are stored: the data directory, a temporary one for the mapped engine if there is none,
+    // whose snapshots don't fit on the heap, or null to keep them in memory
+    private final Path snapshotDir;
+    private volatile int snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+    // rounds before logStart are compacted into the latest snapshot, acceptors refuse them
+    private volatile int logStart;
+    // latest snapshot as stored, only kept in memory when there is no snapshotDir, needs snapshotLock
+    private byte[] latestSnapshot;
+    private volatile int storedSnapshotRound;
+    // values keys had when the running snapshot was captured, Snapshot.ABSENT for none, null if no snapshot is
+    // running; set and filled with writeLock, read by the snapshot thread while it streams the store
+    private ConcurrentHashMap<ByteKey, byte[]> snapshotPreImages;
+    private final ExecutorService snapshotExecutor;
+    // one snapshot stored and compacted at a time
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    // one snapshot copied from a peer at a time
+    private final ReentrantLock receiveLock = new ReentrantLock();
+
+    // background catch-up for rounds this server never learned
+    private final ScheduledExecutorService catchUpExecutor;
+    private final AtomicBoolean catchUpScheduled = new AtomicBoolean();
+
+    // multi-paxos proposer state: ballot won in phase 1 that covers every round >= leaderFromRound, 0 if not leader;
+    // only as long as leaderConfig votes, phase 1 of a later configuration has to be run again
+    private volatile int leaderBallot;
+    private volatile int leaderFromRound;
+    private volatile Configuration leaderConfig;
+
+    // failure detection: highest ballot whose proposer was last seen acting as leader and when, 0 if none
+    private volatile int leaderSeenBallot;
+    private volatile long leaderSeenNanos;
+    // silence after which this server stops forwarding and proposes itself, randomized per server so that
+    // followers don't all take over at once
+    private final long leaderTimeoutNanos;
+    private final ScheduledExecutorService heartbeatExecutor;
+    // peers with a heartbeat still on the way, a slow one isn't sent another
+    private final Set<Integer> heartbeatsInFlight = ConcurrentHashMap.newKeySet();
+
+    // highest ballot this incarnation's proposers raised to; proposers join it rather than outbid each other, which
+    // is safe as a round never runs twice with one ballot here. Not kept across restarts, a previous incarnation may
+    // have run the same round with the ballots it raised to
+    private final AtomicInteger raisedBallot = new AtomicInteger();
+
+    // multi-paxos acceptor state: one promised ballot for the whole range of rounds >= promisedFromRound
+    private int promisedBallot;
+    private int promisedFromRound;
+    // highest round this acceptor accepted a value in
+    private int lastAcceptedRound = -1;
+
+    // rounds this server got chosen and has yet to announce, by peer id, see announce
+    private final CommitStream[] commitStreams;
+
+    // latencies, retries and catch-up, see PaxosMetrics
+    private final PaxosMetrics metrics = new PaxosMetrics();
 
     // flag to simulate failure
-    public boolean serviceDown;
+    public volatile boolean serviceDown;
 
     /**
      * Constructor to create a Server instance.
      *
      * @param serverId   The unique ID of this server.
-     * @param numServers The total number of servers in the system.
+     * @param numServers The total number of servers in the system, all of them vote.
      */
     public Server(int serverId, int numServers) throws RemoteException {
+        this(serverId, numServers, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Constructor to create a Server instance.
+     *
+     * @param serverId    The unique ID of this server.
+     * @param numServers  The total number of servers in the system.
+     * @param maxInFlight The number of rounds this server may propose concurrently.
+     */
+    public Server(int serverId, int numServers, int maxInFlight) throws RemoteException {
+        this(serverId, numServers, maxInFlight, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_BATCH_DELAY_MS);
+    }
+
+    /**
+     * Constructor to create a Server instance.
+     *
+     * @param serverId        The unique ID of this server.
+     * @param numServers      The total number of servers in the system.
+     * @param maxInFlight     The number of rounds this server may propose concurrently.
+     * @param maxBatchSize    The most client commands packed into one round.
+     * @param maxBatchDelayMs How long a batch waits to fill up before it is proposed.
+     */
+    public Server(int serverId, int numServers, int maxInFlight, int maxBatchSize, long maxBatchDelayMs) throws RemoteException {
+        this(serverId, numServers, maxInFlight, maxBatchSize, maxBatchDelayMs, null);
+    }
+
+    /**
+     * Constructor to create a Server instance.
+     *
+     * @param serverId        The unique ID of this server.
+     * @param numServers      The total number of servers in the system.
+     * @param maxInFlight     The number of rounds this server may propose concurrently.
+     * @param maxBatchSize    The most client commands packed into one round.
+     * @param maxBatchDelayMs How long a batch waits to fill up before it is proposed.
+     * @param dataDir         Directory of the write-ahead log, replayed on start, or null to keep state in memory only.
+     */
+    public Server(int serverId, int numServers, int maxInFlight, int maxBatchSize, long maxBatchDelayMs, Path dataDir) throws RemoteException {
+        this(serverId, numServers, allServers(numServers), maxInFlight, maxBatchSize, maxBatchDelayMs, dataDir);
+    }
+
+    /**
+     * Constructor to create a Server instance.
+     *
+     * @param serverId        The unique ID of this server.
+     * @param numServers      The number of server ids, every server that ever joins the cluster needs one below it.
+     * @param members         The servers that vote from round 0 on, all with data and majority quorums; this one
+     *                        may be left out to start it as a learner that can be added later with a CONFIG command.
+     * @param maxInFlight     The number of rounds this server may propose concurrently.
+     * @param maxBatchSize    The most client commands packed into one round.
+     * @param maxBatchDelayMs How long a batch waits to fill up before it is proposed.
+     * @param dataDir         Directory of the write-ahead log, replayed on start, or null to keep state in memory only.
+     */
+    public Server(int serverId, int numServers, int[] members, int maxInFlight, int maxBatchSize, long maxBatchDelayMs,
+                  Path dataDir) throws RemoteException {
+        this(serverId, numServers, new Configuration(0, members), maxInFlight, maxBatchSize, maxBatchDelayMs, dataDir);
+    }
+
+    /**
+     * Constructor to create a Server instance.
+     *
+     * @param serverId        The unique ID of this server.
+     * @param numServers      The number of server ids, every server that ever joins the cluster needs one below it.
+     * @param config          Who votes from round 0 on, with the witnesses and quorum sizes, the same on every
+     *                        server; this one may be left out to start it as a learner that can be added later
+     *                        with a CONFIG command.
+     * @param maxInFlight     The number of rounds this server may propose concurrently.
+     * @param maxBatchSize    The most client commands packed into one round.
+     * @param maxBatchDelayMs How long a batch waits to fill up before it is proposed.
+     * @param dataDir         Directory of the write-ahead log, replayed on start, or null to keep state in memory only.
+     */
+    public Server(int serverId, int numServers, Configuration config, int maxInFlight, int maxBatchSize,
+                  long maxBatchDelayMs, Path dataDir) throws RemoteException {
         super();
+        if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be at least 1");
+        if (maxBatchSize < 1) throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelayMs = maxBatchDelayMs;
         this.numServers = numServers;
         serviceDown = false;
-        // exclude itself
-        this.majorityNum = numServers / 2;
+        if (config.fromRound != 0) throw new IllegalArgumentException("the first configuration starts at round 0");
+        for (int member : config.members) {
+            if (member >= numServers) throw new IllegalArgumentException("no server id " + member);
+        }
+        configs = List.of(config);
 
         this.serverId = serverId;
+        witness = config.isWitness(serverId);
         paxosRound = 0;
-        instances = new HashMap<>();
+        instances = new InstanceLog(round -> new PaxosInstance(round, serverId, 0, null));
+        this.maxInFlight = maxInFlight;
+        commitStreams = new CommitStream[numServers];
+        for (int i = 0; i < numServers; i++) commitStreams[i] = new CommitStream();
+        operationIds = new AtomicLong(((long) serverId << 48) | (System.currentTimeMillis() & 0xFFFFFFFFFFL));
+        rpcExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "rpc-" + serverId);
+            t.setDaemon(true);
+            return t;
+        });
+        catchUpExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "catch-up-" + serverId);
+            t.setDaemon(true);
+            return t;
+        });
+        snapshotExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "snapshot-" + serverId);
+            t.setDaemon(true);
+            return t;
+        });
+        leaderTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(LEADER_TIMEOUT_MS + ThreadLocalRandom.current().nextLong(LEADER_TIMEOUT_MS + 1));
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "heartbeat-" + serverId);
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeatExecutor.scheduleAtFixedRate(this::sendHeartbeats, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        this.dataDir = dataDir;
+        kvStore = createStore(System.getProperty("paxos.store", "heap"));
+        if (dataDir == null && kvStore instanceof MappedKVStore) {
+            try {
+                snapshotDir = Files.createTempDirectory("paxos-snapshot-" + serverId);
+            } catch (IOException e) {
+                throw new RemoteException("cannot create snapshot directory of server " + serverId, e);
+            }
+        } else {
+            snapshotDir = dataDir;
+        }
+        if (dataDir == null) {
+            log = null;
+        } else {
+            try {
+                // start from the snapshot, then replay the log tail after it
+                Path file = dataDir.resolve(SNAPSHOT_FILE);
+                if (Files.exists(file)) {
+                    try (DataInputStream in = openSnapshot(file, null)) {
+                        Snapshot snapshot = Snapshot.readHeader(in);
+                        kvStore.readSnapshot(in);
+                        loadSessions(snapshot.sessions);
+                        configs = List.copyOf(snapshot.configs);
+                        witness = isWitness(serverId);
+                        paxosRound = snapshot.round;
+                        logStart = snapshot.round;
+                        instances.removeBefore(snapshot.round, null);
+                        storedSnapshotRound = snapshot.round;
+                        seeRound(snapshot.round - 1);
+                    }
+                }
+                log = WriteAheadLog.open(dataDir, WriteAheadLog.DEFAULT_SEGMENT_SIZE, this::recover);
+            } catch (IOException e) {
+                throw new RemoteException("cannot open write-ahead log in " + dataDir, e);
+            }
+            // rebuild the store from the chosen values
+            applyCommitted();
+        }
+        metrics.gauge("paxosRound", () -> paxosRound);
+        // how far applying trails the highest round any proposer has been seen using
+        metrics.gauge("roundLag", () -> Math.max(0, highestSeenRound.get() + 1 - paxosRound));
+        metrics.gauge("inFlight", () -> inFlight);
+        metrics.gauge("instances", instances::size);
+        metrics.gauge("pendingCommands", pending::size);
+        metrics.gauge("leaderBallot", () -> leaderBallot);
+        metrics.gauge("members", () -> configOf(paxosRound).members.length);
+        metrics.gauge("phase1Quorum", () -> configOf(paxosRound).q1);
+        metrics.gauge("phase2Quorum", () -> configOf(paxosRound).q2);
+        metrics.gauge("witness", () -> witness ? 1 : 0);
+        metrics.register(serverId);
+    }
 
+    /**
+     * Set how many applied rounds pass between two snapshots.
+     *
+     * @param snapshotInterval Number of rounds.
+     */
+    public void setSnapshotInterval(int snapshotInterval) {
+        if (snapshotInterval < 1) throw new IllegalArgumentException("snapshotInterval must be at least 1");
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * Stop this server for good, for in-process clusters that start many servers in one JVM. It refuses every call
+     * like a crashed server, its threads stop, RMI lets go of it, its write-ahead log and store are closed, its
+     * metrics leave JMX and a temporary snapshot directory is deleted.
+     */
+    public void shutdown() {
+        serviceDown = true;
+        heartbeatExecutor.shutdownNow();
+        catchUpExecutor.shutdownNow();
+        snapshotExecutor.shutdownNow();
+        rpcExecutor.shutdownNow();
+        try {
+            unexportObject(this, true);
+        } catch (NoSuchObjectException e) {
+            // not exported any more
+        }
+        metrics.unregister();
+        try {
+            if (log != null) log.close();
+        } catch (IOException e) {
+            System.out.println("cannot close write-ahead log of server " + serverId + ": " + e.getMessage());
+        }
+        kvStore.close();
+        if (snapshotDir != null && dataDir == null) {
+            try {
+                for (String name : new String[]{SNAPSHOT_FILE, SNAPSHOT_TMP, SNAPSHOT_INCOMING}) {
+                    Files.deleteIfExists(snapshotDir.resolve(name));
+                }
+                Files.deleteIfExists(snapshotDir);
+            } catch (IOException e) {
+                System.out.println("cannot delete snapshots of server " + serverId + ": " + e.getMessage());
+            }
+        }
     }
 
     /**
@@ -72,237 +442,1560 @@ public class Server extends UnicastRemoteObject implements ServerInterface, Prop
 
 
     /**
-     *
+     * Pass the operation on to the leader if another server is known to be leading, otherwise propose it here.
+     * Proposing only on the leader keeps servers from outbidding each other's ballots. A witness never proposes,
+     * without a leader it passes the operation on to a member that keeps data.
      *
      * @param operation The operation to be proposed.
      */
     @Override
-    public synchronized String sendCommand(Operation operation) throws RemoteException {
+    public Result sendCommand(Operation operation) throws RemoteException {
         // if it is down, do nothing, pretend fault
         if(serviceDown) throw new RemoteException("target server is down");
-        // create a new paxos instance
-        if (!instances.containsKey(paxosRound)) {
-            instances.put(paxosRound, new PaxosInstance(paxosRound, serverId, 0, operation));
+        if (!operation.isValidCommand() || !validConfig(operation)) return Result.failed(Result.ErrorCode.INVALID_INPUT);
+        // the id travels with the command from here on, through forwarding, accepting and learning
+        if (operation.id == 0) operation.id = operationIds.incrementAndGet();
+        int ballot = leaderSeenBallot;
+        LeaderInterface leader = liveLeader(ballot);
+        if (leader != null) {
+            if (TRACE) trace("op " + operation.id + " " + session(operation) + "forwarded to server " + ballot % numServers);
+            metrics.forwards.increment();
+            try {
+                return leader.forwardCommand(operation);
+            } catch (RemoteException e) {
+                // the leader is gone, stop waiting for its heartbeats to run out
+                System.out.println(e.getMessage());
+                if (leaderSeenBallot == ballot) leaderSeenBallot = 0;
+            }
         }
-        PaxosInstance instance = instances.get(paxosRound);
-        instance.increNum(numServers);
-        return propose(instance.round, instance.num, operation);
+        if (witness) return forwardToMember(operation);
+        if (TRACE) trace("op " + operation.id + " " + session(operation) + "proposed here");
+        return proposeCommand(operation);
     }
 
     @Override
-    public synchronized String propose(int round, int proposalId, Operation operation) throws RemoteException {
-        // if operation is null, means this server got behind, just want to catch up
-        PaxosInstance instanceR = instances.get(round);
-        Operation val = prepare(round, proposalId);
-        if (val == null) {
-            return "cannot communicate with majority";
+    public Result forwardCommand(Operation operation) throws RemoteException {
+        if(serviceDown) throw new RemoteException("target server is down");
+        // the sender proposes itself instead
+        if (witness) throw new RemoteException("server " + serverId + " is a witness and doesn't propose");
+        if (!operation.isValidCommand() || !validConfig(operation)) return Result.failed(Result.ErrorCode.INVALID_INPUT);
+        return proposeCommand(operation);
+    }
+
+    // a witness with no leader to forward to tries the members with data one after the other
+    private Result forwardToMember(Operation operation) throws RemoteException {
+        AcceptorInterface[] peers = acceptors;
+        Configuration config = configOf(paxosRound);
+        for (int member : config.members) {
+            if (config.isWitness(member) || peers == null || member >= peers.length
+                    || !(peers[member] instanceof LeaderInterface peer)) continue;
+            if (TRACE) trace("op " + operation.id + " " + session(operation) + "forwarded to server " + member);
+            metrics.forwards.increment();
+            try {
+                return peer.forwardCommand(operation);
+            } catch (RemoteException e) {
+                System.out.println(e.getMessage());
+            }
         }
-        int res = acceptRequest(round, instanceR.num, val);
-        if (res == -1) return "cannot communicate with majority";
+        throw new RemoteException("witness " + serverId + " cannot reach a member to propose");
+    }
 
-        // accept request nack by higher Num
-        else if (res > 0) {
-            instanceR.num = nextHigherNum(res);
-            return propose(round, instanceR.num, operation);
+    // a CONFIG may only name servers that have an id here, and may not turn a server into a witness or back
+    private boolean validConfig(Operation operation) {
+        if (operation.type != Operation.CONFIG) return true;
+        Configuration next = operation.configuration(0);
+        for (int member : next.members) {
+            if (member >= numServers) return false;
         }
+        return keepsRoles(next);
+    }
 
-        // success
-        // if not the expected value, help finish current paxos and try another instance later
-        if (operation != null && !operation.equals(val)) {
-            applyOperation(round, val);
-            return sendCommand(operation);
+    /**
+     * Queue the operation for the next batch and return its result once it is applied.
+     * Callers take turns driving batches whenever a round in the window is free.
+     */
+    private Result proposeCommand(Operation operation) throws RemoteException {
+        // a retry of a command this server has applied already
+        Result cached = cachedResponse(operation);
+        if (cached != null) return cached;
+        if (operation.id == 0) operation.id = operationIds.incrementAndGet();
+        PendingCommand command = new PendingCommand(operation);
+        PendingCommand earlier = pending.putIfAbsent(operation.id, command);
+        try {
+            // the same operation is pending here already, like a retry of it from this process; whoever queued it
+            // drives it, this caller shares its result
+            if (earlier != null) command = earlier;
+            else batchQueue.add(command);
+            while (earlier == null) {
+                windowLock.lock();
+                try {
+                    // stop waiting as soon as someone else took the command, its result comes from them
+                    while (!command.taken && inFlight >= maxInFlight) windowChanged.await();
+                    if (command.taken) break;
+                    inFlight++;
+                } finally {
+                    windowLock.unlock();
+                }
+                try {
+                    proposeBatch();
+                } finally {
+                    windowLock.lock();
+                    try {
+                        inFlight--;
+                        windowChanged.signalAll();
+                    } finally {
+                        windowLock.unlock();
+                    }
+                }
+            }
+            // whoever took the command always completes it, unless its round never settles
+            Result result;
+            try {
+                result = command.result.get(COMMAND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                pending.remove(operation.id, command);
+                metrics.majorityFailures.increment();
+                return Result.failed(Result.ErrorCode.NO_MAJORITY);
+            }
+            // the new members take over CONFIG_WINDOW rounds later, fill them rather than wait for traffic to
+            if (operation.type == Operation.CONFIG && result.status() == Result.Status.OK) {
+                int fromRound = configs.get(configs.size() - 1).fromRound;
+                while (paxosRound < fromRound) {
+                    if (proposeCommand(Operation.noop()).status() != Result.Status.OK) break;
+                }
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("interrupted while waiting for a free round");
+        } catch (ExecutionException e) {
+            throw new RemoteException("command failed", e.getCause());
         }
-        return applyOperation(round, val);
     }
 
+    /**
+     * Read a key without a log slot, see query.
+     *
+     * @param key   The key to read.
+     * @param stale Whether a possibly outdated value is good enough.
+     */
+    @Override
+    public Result read(byte[] key, boolean stale) throws RemoteException {
+        return query(Operation.get(key), stale);
+    }
 
+    /**
+     * Linearizable GET, MGET or SCAN without a log slot, ReadIndex style: ask enough acceptors to meet every phase 2
+     * quorum for the highest round they accepted anything in, every chosen round is at most that, then wait until
+     * it is applied here and serve from the local store. A stale read skips all of that and serves the local store
+     * as is. A witness has no store to serve from, it runs every read as a command.
+     *
+     * @param query The read to run.
+     * @param stale Whether a possibly outdated view is good enough.
+     */
     @Override
-    public synchronized Operation prepare(int round, int proposalId) throws RemoteException {
-        int count = 0;
-        int promisedNum = 0;
-        Operation acceptedValue = instances.get(round).operation;
-        int acceptedNum = 0;
-        for (AcceptorInterface acceptor : acceptors) {
-            // itself
-            if (acceptor == null) continue;
-            try {
-                PromiseMsg msg = acceptor.promise(round, proposalId);
+    public Result query(Operation query, boolean stale) throws RemoteException {
+        if(serviceDown) throw new RemoteException("target server is down");
+        if (!query.isRead() || !query.isValidCommand()) return Result.failed(Result.ErrorCode.INVALID_INPUT);
+        // no data here, the read takes a round on a member that has it
+        if (witness) return sendCommand(query);
+        if (!stale) {
+            int start = paxosRound;
+            List<Configuration> asked;
+            do {
+                // a round chosen by any configuration from here on was accepted by a phase 2 quorum of it
+                asked = configsFrom(start);
+                int readIndex = -1;
+                for (Configuration config : asked) {
+                    int needed = config.readQuorum();
+                    List<Integer> replies = fanOut(quorum(config), this, AcceptorInterface::maxAcceptedRound,
+                            rounds -> rounds.size() >= needed);
+                    if (replies.size() < needed) {
+                        metrics.majorityFailures.increment();
+                        return Result.failed(Result.ErrorCode.NO_MAJORITY);
+                    }
+                    for (int round : replies) readIndex = Math.max(readIndex, round);
+                }
+                if (!awaitRound(readIndex + 1)) {
+                    // the round can't be settled from here, like on the minority side of a partition
+                    metrics.majorityFailures.increment();
+                    return Result.failed(Result.ErrorCode.NO_MAJORITY);
+                }
+                // applying may have brought up configurations nobody asked, they could have chosen later rounds
+            } while (!configsFrom(start).equals(asked));
+        }
+        if (query.type == Operation.GET) return execute(query);
+        // holding off the applying thread, so every key is seen as of the same round and no TXN half applied
+        writeLock.lock();
+        try {
+            return execute(query);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // wait until every round before round is applied, false if that takes longer than ROUND_WAIT_MS
+    private boolean awaitRound(int round) throws RemoteException {
+        if (paxosRound >= round) return true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ROUND_WAIT_MS);
+        writeLock.lock();
+        try {
+            while (paxosRound < round) {
+                if (System.nanoTime() - deadline >= 0) return false;
+                if (!applied.await(APPLY_WAIT_MS, TimeUnit.MILLISECONDS)) scheduleCatchUp(0);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("interrupted while waiting for round " + round);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // a client command waiting for its result
+    private static class PendingCommand {
+        final Operation operation;
+        final CompletableFuture<Result> result = new CompletableFuture<>();
+        // picked up by a batch
+        volatile boolean taken;
+
+        PendingCommand(Operation operation) {
+            this.operation = operation;
+        }
+    }
+
+    // take up to maxBatchSize queued commands, waiting up to maxBatchDelayMs to fill the batch, and run them in one round
+    private void proposeBatch() throws InterruptedException {
+        List<PendingCommand> batch = new ArrayList<>(maxBatchSize);
+        batchQueue.drainTo(batch, maxBatchSize);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBatchDelayMs);
+        while (batch.size() < maxBatchSize && maxBatchDelayMs > 0) {
+            PendingCommand next = batchQueue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (next == null) break;
+            batch.add(next);
+            batchQueue.drainTo(batch, maxBatchSize - batch.size());
+        }
+        if (batch.isEmpty()) return;
+
+        List<Operation> operations = new ArrayList<>(batch.size());
+        for (PendingCommand command : batch) {
+            command.taken = true;
+            operations.add(command.operation);
+        }
+        windowLock.lock();
+        try {
+            windowChanged.signalAll();
+        } finally {
+            windowLock.unlock();
+        }
+        // a lone command goes as is
+        Operation value = operations.size() == 1 ? operations.get(0) : Operation.batch(operations);
+        if (value.id == 0) value.id = operationIds.incrementAndGet();
+        if (TRACE && value.type == Operation.BATCH) {
+            StringBuilder ids = new StringBuilder();
+            for (Operation operation : operations) ids.append(' ').append(operation.id);
+            trace("op " + value.id + " batches ops" + ids);
+        }
+        Result failure;
+        try {
+            failure = proposeNew(value);
+        } catch (RemoteException e) {
+            failure = null;
+            for (PendingCommand command : batch) {
+                pending.remove(command.operation.id);
+                command.result.completeExceptionally(e);
+            }
+        }
+        // applying answered every command in the batch unless the round failed
+        if (failure != null) {
+            for (PendingCommand command : batch) {
+                pending.remove(command.operation.id);
+                command.result.complete(failure);
+            }
+        }
+    }
+
+    // create a new paxos instance for the operation and run it
+    private Result proposeNew(Operation operation) throws RemoteException {
+        int round = allocateRound();
+        // the configuration of the round is only known once the rounds CONFIG_WINDOW before it are applied;
+        // the round stays a gap if they aren't, catch-up fills it like any other
+        if (!awaitRound(round - CONFIG_WINDOW + 1)) {
+            metrics.majorityFailures.increment();
+            return Result.failed(Result.ErrorCode.NO_MAJORITY);
+        }
+        PaxosInstance instance = getInstance(round);
+        synchronized (instance) {
+            instance.operation = operation;
+            instance.proposing = true;
+            // stable leader reuses its ballot, others need a fresh one
+            if (isLeaderFor(round)) instance.num = leaderBallot;
+            else instance.num = freshBallot(instance);
+        }
+        try {
+            return propose(round, instance.num, operation);
+        } finally {
+            synchronized (instance) {
+                instance.proposing = false;
+            }
+        }
+    }
+
+    @Override
+    public Result propose(int round, int proposalId, Operation operation) throws RemoteException {
+        // if operation is null, means this server got behind, just want to catch up
+        PaxosInstance instanceR = getInstance(round);
+        instanceR.num = proposalId;
+        for (int attempt = 0; ; attempt++) {
+            if (attempt > 0) backOff(attempt);
+            Operation val;
+            // stable leader, phase 1 of this round is already covered by the leader ballot
+            if (operation != null && isLeaderFor(round) && instanceR.num == leaderBallot) {
+                val = operation;
+            } else {
+                val = prepare(round, instanceR.num);
+            }
+            if (val == null) {
+                // the round got covered by an installed snapshot meanwhile, which may hold the operation already;
+                // proposing it again could apply it twice, so its outcome is unknown like in settledResult
+                if (round < paxosRound) return operation == null ? null : Result.failed(Result.ErrorCode.OUTCOME_UNKNOWN);
+                return Result.failed(Result.ErrorCode.NO_MAJORITY);
+            }
+            int res = acceptRequest(round, instanceR.num, val);
+            if (res == -1) return Result.failed(Result.ErrorCode.NO_MAJORITY);
+
+            // accept request nack by higher Num
+            if (res > 0) {
+                // someone else holds a higher ballot, step down and run full paxos again after a pause
+                leaderBallot = 0;
+                instanceR.num = outbid(res);
+                continue;
+            }
+
+            // success
+            commit(round, val);
+            if (!LEARN_FROM_ALL) announce(round, val);
+            if (operation == null) return null;
+            // if not the expected value, it is chosen anyway, try another instance
+            if (!operation.equals(val)) return proposeNew(operation);
+            return awaitApplied(instanceR);
+        }
+    }
+
+
+    @Override
+    public Operation prepare(int round, int proposalId) throws RemoteException {
+        // held on to, compaction may drop the round from the map while this phase runs
+        PaxosInstance instance = getInstance(round);
+        instance.num = proposalId;
+        for (int attempt = 0; ; attempt++) {
+            if (attempt > 0) backOff(attempt);
+            int ballot = instance.num;
+            int count = 0;
+            int promisedNum = 0;
+            Operation acceptedValue = instance.operation;
+            int acceptedNum = 0;
+            int maxAcceptedRound = -1;
+            Configuration config = configOf(round);
+            int needed = config.q1;
+            // an acceptor that promised the range to the ballot another local proposer raised has promised it here too,
+            // its reply still tells what it accepted in the round
+            Predicate<PromiseMsg> granted = ballot == raisedBallot.get()
+                    ? m -> m.ack || !m.compacted && m.promisedNum == ballot : m -> m.ack;
+            // stop at the first nack or as soon as a phase 1 quorum promised
+            long started = System.nanoTime();
+            List<PromiseMsg> replies = fanOut(quorum(config), this, acceptor -> acceptor.promise(round, ballot),
+                    msgs -> msgs.stream().filter(granted).count() >= needed || msgs.stream().anyMatch(granted.negate()));
+            metrics.prepare.record(System.nanoTime() - started);
+            for (PromiseMsg msg : replies) {
+                if (msg.lastAcceptedRound > maxAcceptedRound) maxAcceptedRound = msg.lastAcceptedRound;
                 // choose accepted value of the highest ballot
-                if (msg.acceptedVal != null && msg.acceptedVal.getKey() > acceptedNum) {
-                    acceptedNum = msg.acceptedVal.getKey();
-                    acceptedValue = msg.acceptedVal.getValue();
+                if (msg.acceptedValue != null && msg.acceptedBallot > acceptedNum) {
+                    acceptedNum = msg.acceptedBallot;
+                    acceptedValue = msg.acceptedValue;
                 }
-                if (msg.ack) {
+                if (granted.test(msg)) {
                     count++;
-                } else if (msg.promisedNum > promisedNum) {
-                    promisedNum = msg.promisedNum;
+                } else if (!msg.compacted) {
+                    metrics.nacks.increment();
+                    if (msg.promisedNum > promisedNum) promisedNum = msg.promisedNum;
                 }
-            } catch (RemoteException e) {
-                System.out.println(e.getMessage());
             }
+            if (TRACE) trace(tag(round, instance.operation) + "prepare ballot " + ballot + ": " + count + " promised"
+                    + (promisedNum != 0 ? ", nack by ballot " + promisedNum : ""));
+            // this server is behind the peers' snapshots, install one and let the caller start over
+            if (replies.stream().anyMatch(m -> m.compacted)) {
+                installSnapshot();
+                return null;
+            }
+            // get nack, try higher num after a pause
+            if (promisedNum != 0) {
+                instance.num = outbid(promisedNum);
+                continue;
+            }
+            if (count >= needed) {
+                // nobody in the quorum accepted anything beyond this round, so the ballot is safe for all later
+                // rounds of the configuration; a witness only recovers rounds and never leads
+                if (maxAcceptedRound <= round && !witness) {
+                    leaderFromRound = round + 1;
+                    leaderConfig = config;
+                    leaderBallot = ballot;
+                }
+                return acceptedValue;
+            }
+            // cannot communicate with a quorum, stop
+            metrics.majorityFailures.increment();
+            return null;
         }
-        // get nack, try higher num
-        if (promisedNum != 0) {
-            instances.get(round).num = nextHigherNum(promisedNum);
-            return prepare(round, instances.get(round).num);
+    }
+
+    // random pause before retry number attempt of a lost ballot race, so two proposers stop outbidding each other
+    private void backOff(int attempt) throws RemoteException {
+        long bound = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt, 16));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("interrupted while backing off");
         }
-        if (count >= majorityNum) return acceptedValue;
-        // cannot communicate with majority, stop
-        return null;
     }
 
     @Override
-    public synchronized PromiseMsg promise(int round, int proposalId) throws RemoteException {
+    public PromiseMsg promise(int round, int proposalId) throws RemoteException {
         // if down, do nothing, pretend failure
         if(serviceDown) throw new RemoteException("Cannot get prepare result from acceptor " + serverId);
-        while (paxosRound < round) {
-            // if got behind, catch up first
-            sendCommand(null);
+        seeRound(round);
+        if (round < logStart) {
+            PromiseMsg reply = new PromiseMsg(false, 0, 0, null, lastAcceptedRound);
+            reply.compacted = true;
+            return reply;
         }
-        if (!instances.containsKey(round)) {
-            instances.put(round, new PaxosInstance(round, serverId, 0, null));
-        }
-        PaxosInstance instance = instances.get(round);
-        PromiseMsg reply = new PromiseMsg(false, instance.promised, instance.acceptedValue);
-        // if it is the highest num, accept it
-        if (instance.promised < proposalId) {
-            instance.promised = proposalId;
-            reply.ack = true;
+        PaxosInstance instance = getInstance(round);
+        PromiseMsg reply;
+        long lsn = 0;
+        acceptorLock.lock();
+        try {
+            int promised = promisedFor(instance);
+            reply = new PromiseMsg(false, promised, instance.acceptedBallot, instance.acceptedValue, lastAcceptedRound);
+            // if it is the highest num, accept it
+            if (promised < proposalId) {
+                instance.promised = proposalId;
+                lsn = logRecord(WriteAheadLog.PROMISE, round, proposalId, null);
+                if (extendPromise(round, proposalId)) {
+                    // the widened range, so a restart doesn't shrink it back to round
+                    lsn = logRecord(WriteAheadLog.PROMISE_RANGE, promisedFromRound, proposalId, null);
+                }
+                // a higher ballot got promised, this server is no longer the distinguished proposer
+                if (proposalId > leaderBallot) leaderBallot = 0;
+                noteLeader(proposalId);
+                reply.ack = true;
+            }
+        } finally {
+            acceptorLock.unlock();
         }
+        // the promise must be on disk before anyone hears about it, outside the lock so fsyncs get shared
+        syncLog(lsn);
         return reply;
     }
 
 
     // 0 for success, -1 for not enough nodes, > 0 for promisedNum
     @Override
-    public synchronized int acceptRequest(int round, int proposalId, Operation operation) throws RemoteException {
+    public int acceptRequest(int round, int proposalId, Operation operation) throws RemoteException {
         // Implement Paxos accept logic here
         int count = 0;
         int promisedNum = -1;
-        for (AcceptorInterface acceptor : acceptors) {
-            // itself
-            if (acceptor == null) continue;
-            try {
-                AcceptReply reply = acceptor.accept(round, proposalId, operation);
-                if (reply.ack) {
-                    count++;
-                } else if (reply.promisedNum > promisedNum) {
-                    promisedNum = reply.promisedNum;
-                }
-            } catch (RemoteException e) {
-                System.out.println(e.getMessage());
+        Configuration config = configOf(round);
+        int needed = config.q2;
+        // stop at the first nack or as soon as a phase 2 quorum accepted
+        long started = System.nanoTime();
+        List<AcceptReply> replies = fanOut(quorum(config), this, acceptor -> acceptor.accept(round, proposalId, operation),
+                msgs -> msgs.stream().filter(m -> m.ack).count() >= needed || msgs.stream().anyMatch(m -> !m.ack));
+        metrics.accept.record(System.nanoTime() - started);
+        for (AcceptReply reply : replies) {
+            // the round is gone at that acceptor, nothing can be chosen here any more
+            if (reply.compacted) return -1;
+            if (reply.ack) {
+                count++;
+            } else {
+                metrics.nacks.increment();
+                if (reply.promisedNum > promisedNum) promisedNum = reply.promisedNum;
             }
         }
-        if (count < majorityNum) {
+        if (TRACE) trace(tag(round, operation) + "accept ballot " + proposalId + ": " + count + " accepted"
+                + (promisedNum > 0 ? ", nack by ballot " + promisedNum : ""));
+        if (count < needed) {
+            if (promisedNum == -1) metrics.majorityFailures.increment();
             return promisedNum;
         }
         return 0;
     }
 
     @Override
-    public synchronized AcceptReply accept(int round, int proposalId, Operation proposalValue) throws RemoteException {
+    public AcceptReply accept(int round, int proposalId, Operation proposalValue) throws RemoteException {
         if(serviceDown) throw new RemoteException("Cannot get accept result from acceptor " + serverId);
-        while (paxosRound < round) {
-            // catch up
-            sendCommand(null);
+        seeRound(round);
+        if (round < logStart) {
+            AcceptReply reply = new AcceptReply(false, 0);
+            reply.compacted = true;
+            return reply;
         }
-        PaxosInstance instanceR = instances.get(round);
-        if (instanceR.promised > proposalId) return new AcceptReply(false, instanceR.promised);
-        instanceR.promised = proposalId;
-        instanceR.acceptedValue = new AbstractMap.SimpleEntry<>(proposalId, proposalValue);
+        // a stable leader skips phase 1, so the instance may not exist yet
+        PaxosInstance instanceR = getInstance(round);
+        long lsn;
+        acceptorLock.lock();
+        try {
+            int promised = promisedFor(instanceR);
+            if (promised > proposalId) return new AcceptReply(false, promised);
+            instanceR.promised = proposalId;
+            instanceR.acceptedBallot = proposalId;
+            instanceR.acceptedValue = proposalValue;
+            noteLeader(proposalId);
+            if (round > lastAcceptedRound) lastAcceptedRound = round;
+            lsn = logRecord(WriteAheadLog.ACCEPT, round, proposalId, proposalValue);
+        } finally {
+            acceptorLock.unlock();
+        }
+        syncLog(lsn);
+        if (TRACE) trace(tag(round, proposalValue) + "accepted ballot " + proposalId);
+        if (!LEARN_FROM_ALL) return new AcceptReply(true, proposalId);
 
-        // send out the proposal to learners
-        for (LearnerInterface learner : learners) {
-            if (learner == null) continue;
-            try {
-                learner.learn(round, proposalId, proposalValue);
-            } catch (RemoteException e) {
-                System.out.println(e.getMessage());
-            }
+        // send out the proposal to learners including itself, nobody waits for them
+        for (LearnerInterface peer : learners) {
+            LearnerInterface learner = peer == null ? this : peer;
+            rpcExecutor.execute(() -> {
+                try {
+                    learner.learn(round, proposalId, proposalValue);
+                } catch (RemoteException e) {
+                    System.out.println(e.getMessage());
+                }
+            });
         }
         return new AcceptReply(true, proposalId);
     }
 
+    @Override
+    public int maxAcceptedRound() throws RemoteException {
+        if(serviceDown) throw new RemoteException("Cannot get accepted round from acceptor " + serverId);
+        acceptorLock.lock();
+        try {
+            return lastAcceptedRound;
+        } finally {
+            acceptorLock.unlock();
+        }
+    }
+
     @Override
     public void learn(int round, int proposalId, Operation acceptedValue) throws RemoteException {
         // pretend failure
         if(serviceDown) throw new RemoteException("Cannot communicate with learner " + serverId);
-        learnLock.lock();
-        try {
-            while (paxosRound < round) {
-                // catch up
-                sendCommand(null);
-            }
-            if (!instances.containsKey(round)) {
-                instances.put(round, new PaxosInstance(round, serverId, 0, null));
-            }
-            PaxosInstance instanceR = instances.get(round);
+        // already applied
+        if (round < paxosRound) return;
+        seeRound(round);
+        PaxosInstance instanceR = getInstance(round);
+        int needed = configOf(round).q2;
+        boolean chosen = false;
+        synchronized (instanceR) {
             if (instanceR.learnerProposalNum < proposalId) {
                 instanceR.learnerCounter = 1;
                 instanceR.learnerVal = acceptedValue;
                 instanceR.learnerProposalNum = proposalId;
+                instanceR.learnerStartNanos = System.nanoTime();
             } else if (instanceR.learnerProposalNum == proposalId) {
                 instanceR.learnerCounter++;
+            }
+            // apply operation only after a phase 2 quorum accepted it
+            if (instanceR.learnerProposalNum == proposalId && instanceR.learnerCounter >= needed) chosen = true;
+            // once per round, later learn messages of the ballot only add to the count
+            if (chosen && instanceR.learnerCounter == needed) {
+                metrics.learn.record(System.nanoTime() - instanceR.learnerStartNanos);
+                if (TRACE) trace(tag(round, acceptedValue) + "learned ballot " + proposalId);
+            }
+        }
+        if (chosen) commit(round, acceptedValue);
+        // learned a round ahead of what is applied, catch up if the gap doesn't close by itself
+        if (round > paxosRound) scheduleCatchUp(APPLY_WAIT_MS);
+    }
 
-                // apply operation only after receiving majority
-                if (instanceR.learnerCounter >= majorityNum) {
-                    applyOperation(round, acceptedValue);
+    /**
+     * Take the chosen values of rounds another server's proposer got chosen, applying all of them in one go.
+     * Rounds missing in between are caught up on if they don't show up by themselves.
+     */
+    @Override
+    public void learnChosen(int fromRound, Operation[] values) throws RemoteException {
+        if(serviceDown) throw new RemoteException("Cannot communicate with learner " + serverId);
+        int last = -1;
+        for (int i = 0; i < values.length; i++) {
+            int round = fromRound + i;
+            // not included or already applied
+            if (values[i] == null || round < paxosRound) continue;
+            choose(round, values[i]);
+            last = round;
+        }
+        if (last < 0) return;
+        seeRound(last);
+        applyCommitted();
+        if (last >= paxosRound) scheduleCatchUp(APPLY_WAIT_MS);
+    }
+
+    // a round chosen by this server's proposer, waiting to be announced
+    private static class ChosenRound {
+        final int round;
+        final Operation value;
+
+        ChosenRound(int round, Operation value) {
+            this.round = round;
+            this.value = value;
+        }
+    }
+
+    // rounds waiting to be announced to one peer, only one message to a peer is on the way at a time and
+    // everything chosen meanwhile goes in the next one
+    private static class CommitStream {
+        final ConcurrentLinkedQueue<ChosenRound> chosen = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean sending = new AtomicBoolean();
+    }
+
+    // tell every other learner that the round is chosen, nobody waits for them
+    private void announce(int round, Operation value) {
+        LearnerInterface[] peers = learners;
+        if (peers == null) return;
+        ChosenRound chosen = new ChosenRound(round, value);
+        for (int i = 0; i < peers.length; i++) {
+            if (peers[i] == null) continue;
+            CommitStream stream = commitStreams[i];
+            stream.chosen.add(chosen);
+            if (stream.sending.compareAndSet(false, true)) {
+                int peerId = i;
+                rpcExecutor.execute(() -> sendCommits(peerId));
+            }
+        }
+    }
+
+    // send the peer what queued up for it until nothing is left, runs on one thread per peer at a time
+    private void sendCommits(int peerId) {
+        CommitStream stream = commitStreams[peerId];
+        while (true) {
+            List<ChosenRound> batch = new ArrayList<>();
+            for (ChosenRound chosen; (chosen = stream.chosen.poll()) != null; ) batch.add(chosen);
+            if (batch.isEmpty()) {
+                stream.sending.set(false);
+                // a round queued between the poll and the line above found sending still set, take it over
+                if (stream.chosen.isEmpty() || !stream.sending.compareAndSet(false, true)) return;
+                continue;
+            }
+            batch.sort((a, b) -> Integer.compare(a.round, b.round));
+            // rounds far apart go in separate messages, so the gaps between them don't make one huge array
+            int start = 0;
+            for (int i = 1; i <= batch.size(); i++) {
+                if (i < batch.size() && batch.get(i).round - batch.get(start).round < CATCH_UP_CHUNK) continue;
+                int fromRound = batch.get(start).round;
+                Operation[] values = new Operation[batch.get(i - 1).round - fromRound + 1];
+                for (int j = start; j < i; j++) values[batch.get(j).round - fromRound] = batch.get(j).value;
+                long started = System.nanoTime();
+                try {
+                    learners[peerId].learnChosen(fromRound, values);
+                    metrics.learn.record(System.nanoTime() - started);
+                } catch (RemoteException e) {
+                    // the peer catches up on the rounds it missed once it sees later ones
+                    System.out.println(e.getMessage());
                 }
+                start = i;
+            }
+        }
+    }
+
+    // a call to one peer
+    private interface RemoteCall<P, T> {
+        T call(P peer) throws RemoteException;
+    }
+
+    /**
+     * Call every peer concurrently and collect replies until enough says so, all peers answered or RPC_TIMEOUT_MS passed.
+     * Calls still running at that point finish in the background and their replies are dropped.
+     *
+     * @param peers  Peers to call, the null entry stands for this server.
+     * @param self   This server, called locally in place of the null entry.
+     * @param call   The call to make on each peer.
+     * @param enough Decides from the replies so far whether the phase can stop waiting.
+     * @return Replies received in time, failed calls are left out.
+     */
+    private <P, T> List<T> fanOut(P[] peers, P self, RemoteCall<P, T> call, Predicate<List<T>> enough) {
+        CompletionService<T> completion = new ExecutorCompletionService<>(rpcExecutor);
+        int sent = 0;
+        for (P peer : peers) {
+            P target = peer == null ? self : peer;
+            completion.submit(() -> call.call(target));
+            sent++;
+        }
+        List<T> replies = new ArrayList<>(sent);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RPC_TIMEOUT_MS);
+        for (int i = 0; i < sent; i++) {
+            try {
+                Future<T> reply = completion.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                // timed out, leave the stragglers behind
+                if (reply == null) break;
+                replies.add(reply.get());
+            } catch (ExecutionException e) {
+                System.out.println(e.getCause().getMessage());
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             }
+            if (enough.test(replies)) break;
+        }
+        return replies;
+    }
+
+    @Override
+    public CatchUpReply fetchChosen(int fromRound, int maxRounds) throws RemoteException {
+        if(serviceDown) throw new RemoteException("Cannot communicate with learner " + serverId);
+        if (fromRound < logStart) return new CatchUpReply(fromRound, new Operation[0], storedSnapshotRound);
+        List<Operation> values = new ArrayList<>(Math.min(maxRounds, CATCH_UP_CHUNK));
+        for (int r = fromRound; values.size() < maxRounds; r++) {
+            PaxosInstance instance = instances.get(r);
+            if (instance == null || instance.chosen == null) break;
+            values.add(instance.chosen);
+        }
+        return new CatchUpReply(fromRound, values.toArray(new Operation[0]), 0);
+    }
+
+    @Override
+    public SnapshotChunk fetchSnapshot(int round, long offset, int maxBytes) throws RemoteException {
+        if(serviceDown) throw new RemoteException("Cannot communicate with learner " + serverId);
+        int length = Math.max(0, Math.min(maxBytes, SNAPSHOT_CHUNK));
+        // the stored snapshot can't be replaced while a chunk of it is read
+        snapshotLock.lock();
+        try {
+            int stored = storedSnapshotRound;
+            if (stored == 0) return new SnapshotChunk(0, 0, new byte[0], 0);
+            // the caller was copying an older one, it starts over with this one
+            long from = round == stored ? Math.max(0, offset) : 0;
+            if (snapshotDir == null) {
+                int start = (int) Math.min(from, latestSnapshot.length);
+                byte[] bytes = Arrays.copyOfRange(latestSnapshot, start, Math.min(latestSnapshot.length, start + length));
+                return new SnapshotChunk(stored, start, bytes, latestSnapshot.length);
+            }
+            try (FileChannel file = FileChannel.open(snapshotDir.resolve(SNAPSHOT_FILE), StandardOpenOption.READ)) {
+                long size = file.size();
+                ByteBuffer bytes = ByteBuffer.allocate((int) Math.max(0, Math.min(length, size - from)));
+                while (bytes.hasRemaining()) {
+                    if (file.read(bytes, from + bytes.position()) < 0) throw new IOException("snapshot cut short");
+                }
+                return new SnapshotChunk(stored, from, bytes.array(), size);
+            }
+        } catch (IOException e) {
+            throw new RemoteException("cannot read snapshot of server " + serverId, e);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    @Override
+    public String dumpMetrics() throws RemoteException {
+        if(serviceDown) throw new RemoteException("target server is down");
+        return "server " + serverId + "\n" + metrics.dump();
+    }
+
+    public PaxosMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public int heartbeat(int ballot) throws RemoteException {
+        if(serviceDown) throw new RemoteException("Cannot send heartbeat to server " + serverId);
+        acceptorLock.lock();
+        try {
+            if (ballot >= promisedBallot) noteLeader(ballot);
+            return promisedBallot;
         } finally {
-            learnLock.unlock();
+            acceptorLock.unlock();
+        }
+    }
+
+    // while this server holds the leader ballot, tell every peer; a peer that promised a higher one ends the leadership
+    private void sendHeartbeats() {
+        int ballot = leaderBallot;
+        AcceptorInterface[] peers = acceptors;
+        if (serviceDown || ballot == 0 || peers == null) return;
+        for (int i = 0; i < peers.length; i++) {
+            if (!(peers[i] instanceof LeaderInterface peer) || !heartbeatsInFlight.add(i)) continue;
+            int peerId = i;
+            rpcExecutor.execute(() -> {
+                try {
+                    int promised = peer.heartbeat(ballot);
+                    if (promised > ballot && leaderBallot == ballot) leaderBallot = 0;
+                } catch (RemoteException e) {
+                    // not logged, a peer that is down would fill the output every interval
+                } finally {
+                    heartbeatsInFlight.remove(peerId);
+                }
+            });
+        }
+    }
+
+    // a proposer with this ballot just acted as leader, promises, accepts and heartbeats all count
+    private void noteLeader(int ballot) {
+        if (ballot < leaderSeenBallot) return;
+        leaderSeenBallot = ballot;
+        leaderSeenNanos = System.nanoTime();
+    }
+
+    // the leader of ballot if that is another server heard from recently, null if this server should propose itself
+    private LeaderInterface liveLeader(int ballot) {
+        if (ballot == 0 || leaderBallot != 0 || System.nanoTime() - leaderSeenNanos > leaderTimeoutNanos) return null;
+        int leaderId = ballot % numServers;
+        // a witness recovering a round isn't leading
+        if (leaderId == serverId || acceptors == null || isWitness(leaderId)) return null;
+        return acceptors[leaderId] instanceof LeaderInterface leader ? leader : null;
+    }
+
+    // whether this server is the distinguished proposer for the round and can skip phase 1
+    private boolean isLeaderFor(int round) {
+        return leaderBallot != 0 && round >= leaderFromRound && configOf(round) == leaderConfig;
+    }
+
+    private static int[] allServers(int numServers) {
+        int[] members = new int[numServers];
+        for (int i = 0; i < numServers; i++) members[i] = i;
+        return members;
+    }
+
+    // who votes in the round, known for every round before paxosRound + CONFIG_WINDOW
+    private Configuration configOf(int round) {
+        List<Configuration> known = configs;
+        for (int i = known.size() - 1; i > 0; i--) {
+            if (known.get(i).fromRound <= round) return known.get(i);
+        }
+        return known.get(0);
+    }
+
+    // the configuration in effect at round and every later one
+    private List<Configuration> configsFrom(int round) {
+        List<Configuration> known = configs;
+        int first = 0;
+        while (first + 1 < known.size() && known.get(first + 1).fromRound <= round) first++;
+        return known.subList(first, known.size());
+    }
+
+    // the acceptors of the members, null in place of this server, members this server can't reach are left out
+    private AcceptorInterface[] quorum(Configuration config) {
+        AcceptorInterface[] peers = acceptors;
+        AcceptorInterface[] quorum = new AcceptorInterface[config.members.length];
+        int n = 0;
+        for (int member : config.members) {
+            if (member == serverId) n++;
+            else if (peers != null && member < peers.length && peers[member] != null) quorum[n++] = peers[member];
+        }
+        return n == quorum.length ? quorum : Arrays.copyOf(quorum, n);
+    }
+
+    // a CONFIG got applied in round paxosRound - 1, its members take over CONFIG_WINDOW rounds later, needs writeLock;
+    // false if it would change whether a server is a witness
+    private boolean changeMembers(Operation operation) {
+        int fromRound = paxosRound - 1 + CONFIG_WINDOW;
+        Configuration config = operation.configuration(fromRound);
+        if (!keepsRoles(config)) return false;
+        List<Configuration> next = new ArrayList<>(configs);
+        // a second CONFIG in the same round wins
+        if (next.get(next.size() - 1).fromRound == fromRound) next.remove(next.size() - 1);
+        next.add(config);
+        configs = List.copyOf(next);
+        if (!witness && config.isWitness(serverId)) {
+            // a spare that joins as a witness, the data it followed so far isn't needed any more
+            witness = true;
+            snapshotPreImages = null;
+            kvStore.clear();
+            sessions.clear();
+        }
+        if (TRACE) trace("members " + config);
+        return true;
+    }
+
+    // whether every member of the configuration is a witness in it exactly if it was one before
+    private boolean keepsRoles(Configuration config) {
+        for (Configuration known : configs) {
+            for (int member : config.members) {
+                if (known.contains(member) && known.isWitness(member) != config.isWitness(member)) return false;
+            }
         }
+        return true;
+    }
+
+    // a server's role never changes, so any configuration that names it tells
+    private boolean isWitness(int id) {
+        for (Configuration known : configs) {
+            if (known.isWitness(id)) return true;
+        }
+        return false;
+    }
+
+    // promised ballot of an instance, taking the range promise into account, needs acceptorLock
+    private int promisedFor(PaxosInstance instance) {
+        if (instance.round >= promisedFromRound) return Math.max(instance.promised, promisedBallot);
+        return instance.promised;
+    }
+
+    // make the ballot cover every round >= round and every round the old range covered, needs acceptorLock
+    // the range only ever widens: rounds left behind with no instance of their own would fall back to promise 0
+    // returns whether the range changed
+    private boolean extendPromise(int round, int proposalId) {
+        if (proposalId <= promisedBallot) return false;
+        promisedFromRound = promisedBallot == 0 ? round : Math.min(promisedFromRound, round);
+        promisedBallot = proposalId;
+        return true;
+    }
+
+    // append to the write-ahead log if there is one, returns the position to sync to
+    private long logRecord(byte type, int round, int ballot, Operation operation) throws RemoteException {
+        if (log == null) return 0;
+        try {
+            return log.append(type, round, ballot, operation);
+        } catch (IOException e) {
+            throw new RemoteException("cannot write to write-ahead log of server " + serverId, e);
+        }
+    }
+
+    private void syncLog(long lsn) throws RemoteException {
+        if (log == null) return;
+        try {
+            log.sync(lsn);
+        } catch (IOException e) {
+            throw new RemoteException("cannot sync write-ahead log of server " + serverId, e);
+        }
+    }
+
+    // replay one record of the write-ahead log while starting up
+    // records only ever raise state, so duplicates written by compaction replay safely in any order
+    private void recover(byte type, int round, int ballot, Operation operation) {
+        seeRound(round);
+        if (type == WriteAheadLog.PROMISE_RANGE) {
+            extendPromise(round, ballot);
+            return;
+        }
+        // covered by the snapshot
+        if (round < logStart) return;
+        PaxosInstance instance = getInstance(round);
+        switch (type) {
+            case WriteAheadLog.PROMISE -> instance.promised = Math.max(instance.promised, ballot);
+            case WriteAheadLog.ACCEPT -> {
+                instance.promised = Math.max(instance.promised, ballot);
+                if (instance.acceptedValue == null || instance.acceptedBallot <= ballot) {
+                    instance.acceptedBallot = ballot;
+                    instance.acceptedValue = operation;
+                }
+                if (round > lastAcceptedRound) lastAcceptedRound = round;
+            }
+            case WriteAheadLog.CHOSEN -> instance.chosen = operation;
+            default -> throw new IllegalStateException("Unknown log record type: " + type);
+        }
+    }
+
+    // a ballot for another try at a round, above the instance's last one; if this server's acceptor promised the
+    // range to the ballot this server raised last, that one is taken over, so local proposers don't outbid each other
+    private int freshBallot(PaxosInstance instance) {
+        int ballot = instance.num + numServers;
+        acceptorLock.lock();
+        try {
+            if (promisedBallot == raisedBallot.get() && promisedBallot > ballot) ballot = promisedBallot;
+        } finally {
+            acceptorLock.unlock();
+        }
+        return ballot;
+    }
+
+    // the ballot to retry with after a nack by promised: the one another local proposer raised is joined, anyone
+    // else's outbid
+    private int outbid(int promised) {
+        if (promised == raisedBallot.get()) return promised;
+        return nextHigherNum(promised);
     }
 
     public int nextHigherNum(int promised) {
-        return (promised / numServers + 1) * numServers + serverId;
+        metrics.ballotBumps.increment();
+        int ballot = (promised / numServers + 1) * numServers + serverId;
+        raisedBallot.accumulateAndGet(ballot, Math::max);
+        return ballot;
+    }
+
+    private PaxosInstance getInstance(int round) {
+        return instances.getOrCreate(round);
+    }
+
+    private void trace(String message) {
+        System.out.println("trace server " + serverId + " " + message);
+    }
+
+    // how a trace line names a round and the operation in it
+    private static String tag(int round, Operation operation) {
+        return "round " + round + (operation == null ? "" : " op " + operation.id) + " ";
+    }
+
+    // the client request behind a command, so a trace can be matched up with the client's retries
+    private static String session(Operation operation) {
+        return operation.clientId == 0 ? "" : "(client " + operation.clientId + " seq " + operation.seq + ") ";
+    }
+
+    private void seeRound(int round) {
+        highestSeenRound.accumulateAndGet(round, Math::max);
+    }
+
+    // next free round for a local proposal, past everything applied and seen so far
+    private int allocateRound() {
+        while (true) {
+            int next = nextRound.get();
+            int round = Math.max(next, Math.max(paxosRound, highestSeenRound.get() + 1));
+            if (nextRound.compareAndSet(next, round + 1)) {
+                seeRound(round);
+                return round;
+            }
+        }
+    }
+
+    // record the chosen value of a round and apply everything that is now contiguous
+    private void commit(int round, Operation value) {
+        if (choose(round, value)) applyCommitted();
+    }
+
+    // record the chosen value of a round without applying it, false if it was known already
+    private boolean choose(int round, Operation value) {
+        PaxosInstance instance = getInstance(round);
+        synchronized (instance) {
+            if (instance.chosen != null) return false;
+            instance.chosen = value;
+            instance.chosenNanos = System.nanoTime();
+            // no sync, a chosen value lost in a crash can be learned again from the acceptors
+            try {
+                logRecord(WriteAheadLog.CHOSEN, round, 0, value);
+            } catch (RemoteException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    // wait until the round is applied, filling gaps before it if they take too long; applying answers the
+    // round's commands itself, so this only returns a result if the round was skipped by a snapshot
+    private Result awaitApplied(PaxosInstance instance) throws RemoteException {
+        while (true) {
+            synchronized (instance) {
+                if (instance.status != 0) return settledResult(instance);
+                try {
+                    instance.wait(APPLY_WAIT_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RemoteException("interrupted while waiting for round " + instance.round);
+                }
+                if (instance.status != 0) return settledResult(instance);
+            }
+            scheduleCatchUp(0);
+        }
+    }
+
+    // catch up on the background thread after delayMs, unless a catch-up is already pending
+    private void scheduleCatchUp(long delayMs) {
+        if (!catchUpScheduled.compareAndSet(false, true)) return;
+        int target = highestSeenRound.get();
+        catchUpExecutor.schedule(() -> {
+            catchUpScheduled.set(false);
+            try {
+                if (paxosRound < target) catchUp(target);
+            } catch (RemoteException e) {
+                System.out.println(e.getMessage());
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Apply the given operation to the key-value store.
-     *
-     * @param operation The operation to apply.
+     * Bring paxosRound up to round. Chosen values are pulled from peers in chunks, only a round that no peer
+     * has chosen yet is settled with recovery paxos. Runs on the catch-up thread, acceptor traffic goes on meanwhile.
      */
-    private String applyOperation(int round, Operation operation) throws RemoteException {
+    private void catchUp(int round) throws RemoteException {
+        while (paxosRound < round) {
+            int before = paxosRound;
+            pullChosen(round);
+            if (paxosRound > before) continue;
+            // nobody has the round chosen, or it is still being proposed here
+            if (!recover(paxosRound) || paxosRound == before) return;
+        }
+    }
+
+    // copy chosen rounds from the first peers that have them
+    private void pullChosen(int round) {
+        for (int peerId = 0; peerId < learners.length; peerId++) {
+            LearnerInterface learner = learners[peerId];
+            if (learner == null) continue;
+            while (paxosRound < round) {
+                CatchUpReply reply;
+                try {
+                    reply = learner.fetchChosen(paxosRound, CATCH_UP_CHUNK);
+                } catch (RemoteException e) {
+                    System.out.println(e.getMessage());
+                    break;
+                }
+                if (reply.snapshotRound != 0) {
+                    if (reply.snapshotRound <= paxosRound || !hasSnapshotFor(peerId) || !installSnapshot(peerId)) break;
+                    continue;
+                }
+                if (reply.values.length == 0) break;
+                metrics.catchUpRounds.add(reply.values.length);
+                for (int i = 0; i < reply.values.length; i++) {
+                    choose(reply.fromRound + i, reply.values[i]);
+                }
+                applyCommitted();
+            }
+            if (paxosRound >= round) return;
+        }
+    }
+
+    // settle one round with recovery paxos, false if a local proposer is still on it or paxos failed
+    private boolean recover(int round) throws RemoteException {
+        PaxosInstance instance = getInstance(round);
+        synchronized (instance) {
+            if (instance.chosen != null) return true;
+            if (instance.proposing) return false;
+            // never revive an old local proposal here, its client may already have been told it failed
+            instance.operation = Operation.noop();
+            instance.proposing = true;
+            instance.num = freshBallot(instance);
+        }
+        try {
+            if (propose(round, instance.num, null) != null) return false;
+            metrics.catchUpRounds.increment();
+            return true;
+        } finally {
+            synchronized (instance) {
+                instance.proposing = false;
+            }
+        }
+    }
+
+    // apply chosen rounds strictly in log order
+    private void applyCommitted() {
         writeLock.lock();
         try {
-            if (!instances.containsKey(round) || operation == null) {
-                if(operation == null) throw new IllegalStateException("Operation is null");
-                throw new IllegalStateException("not have this round " + round + "this round is " + paxosRound);
+            while (true) {
+                PaxosInstance instance = instances.get(paxosRound);
+                if (instance == null) break;
+                synchronized (instance) {
+                    if (instance.chosen == null) break;
+                    applyOperation(paxosRound, instance.chosen);
+                    instance.notifyAll();
+                }
+            }
+            applied.signalAll();
+            if (snapshotPreImages == null && paxosRound - logStart >= snapshotInterval) startSnapshot();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // capture the store at the current round and copy it in the background while writes go on, needs writeLock
+    private void startSnapshot() {
+        int round = paxosRound;
+        ConcurrentHashMap<ByteKey, byte[]> preImages = new ConcurrentHashMap<>();
+        snapshotPreImages = preImages;
+        // sessions are small, copy them right away
+        Map<Long, ClientSession> sessionCopy = copySessions();
+        List<Configuration> configCopy = configs;
+        snapshotExecutor.execute(() -> takeSnapshot(round, preImages, sessionCopy, configCopy));
+    }
+
+    // stream the store into a temporary file, or into memory without a snapshotDir, then store it
+    private void takeSnapshot(int round, ConcurrentHashMap<ByteKey, byte[]> preImages,
+                              Map<Long, ClientSession> sessionCopy, List<Configuration> configCopy) {
+        Snapshot snapshot = new Snapshot(round, sessionCopy, configCopy);
+        try {
+            if (snapshotDir == null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (DataOutputStream out = new DataOutputStream(bytes)) {
+                    if (!writeSnapshot(out, snapshot, preImages)) return;
+                }
+                storeAndCompact(round, null, bytes.toByteArray());
+            } else {
+                Path tmp = snapshotDir.resolve(SNAPSHOT_TMP);
+                try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+                     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+                    if (!writeSnapshot(out, snapshot, preImages)) return;
+                    out.flush();
+                    file.getFD().sync();
+                }
+                storeAndCompact(round, tmp, null);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("cannot store snapshot of server " + serverId + ": " + e.getMessage());
+            writeLock.lock();
+            try {
+                // let the next one start
+                if (snapshotPreImages == preImages) snapshotPreImages = null;
+            } finally {
+                writeLock.unlock();
             }
-            PaxosInstance instanceR = instances.get(round);
-            // if already settled, return result
-            if (instanceR.status == 1) return instanceR.clientResponse;
+        }
+    }
 
-            // wrap up current paxos instance
-            instanceR.status = 1;
-            paxosRound++;
+    // false if a snapshot got installed meanwhile, which makes this copy worthless
+    private boolean writeSnapshot(DataOutputStream out, Snapshot snapshot, ConcurrentHashMap<ByteKey, byte[]> preImages)
+            throws IOException {
+        snapshot.writeHeader(out);
+        // keys written after the capture show up with their new values or not at all, their pre-images go instead
+        kvStore.writeSnapshot(out, key -> preImages.get(new ByteKey(key)));
+        writeLock.lock();
+        try {
+            if (snapshotPreImages != preImages) return false;
+            // writes go on without pre-images from here, preImages stays as it is
+            snapshotPreImages = null;
+        } finally {
+            writeLock.unlock();
+        }
+        // every key changed since the capture once more, in case the pass missed it; a key written twice holds the
+        // same value both times
+        for (Map.Entry<ByteKey, byte[]> entry : preImages.entrySet()) {
+            if (entry.getValue() != Snapshot.ABSENT) Snapshot.writeEntry(out, entry.getKey().bytes, entry.getValue());
+        }
+        Snapshot.writeEnd(out);
+        return true;
+    }
+
+    // keep the value the key had when the running snapshot was captured, needs writeLock
+    private void rememberPreImage(byte[] key) {
+        if (snapshotPreImages == null) return;
+        ByteKey preImageKey = new ByteKey(key);
+        if (!snapshotPreImages.containsKey(preImageKey)) {
+            byte[] value = kvStore.get(key);
+            snapshotPreImages.put(preImageKey, value != null ? value : Snapshot.ABSENT);
+        }
+    }
 
-            // naive garbage collection
-            if(paxosRound > 100) instances.remove(paxosRound - 100);
+    // store the snapshot of round, synced to file or held in bytes without a snapshotDir, only then drop the rounds
+    // it covers from memory and from the write-ahead log
+    private void storeAndCompact(int round, Path file, byte[] bytes) {
+        snapshotLock.lock();
+        try {
+            if (round <= storedSnapshotRound) return;
+            if (snapshotDir == null) {
+                latestSnapshot = bytes;
+            } else {
+                Files.move(file, snapshotDir.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            storedSnapshotRound = round;
+            compact(round);
+        } catch (IOException e) {
+            System.out.println("cannot store snapshot of server " + serverId + ": " + e.getMessage());
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
 
-            switch (operation.type) {
-                case "PUT" -> {
-                    kvStore.put(operation.key, operation.value);
-                    instanceR.clientResponse = "Successfully put the key " + operation.key + " of value " + operation.value;
+    // drop rounds before round, the write-ahead log gets the live acceptor state written again and its old segments deleted
+    private void compact(int round) throws IOException {
+        if (round > logStart) logStart = round;
+        instances.removeBefore(round, null);
+        if (log == null) return;
+        long start = log.startSegment();
+        long lsn = start;
+        acceptorLock.lock();
+        try {
+            if (promisedBallot > 0) lsn = log.append(WriteAheadLog.PROMISE_RANGE, promisedFromRound, promisedBallot, null);
+            List<PaxosInstance> live = new ArrayList<>();
+            instances.forEach(live::add);
+            for (PaxosInstance instance : live) {
+                if (instance.promised > 0) lsn = log.append(WriteAheadLog.PROMISE, instance.round, instance.promised, null);
+                if (instance.acceptedValue != null) {
+                    lsn = log.append(WriteAheadLog.ACCEPT, instance.round, instance.acceptedBallot, instance.acceptedValue);
                 }
-                case "DELETE" -> {
-                    String result = kvStore.remove(operation.key);
-                    if (result == null) instanceR.clientResponse = "Key " + operation.key + " Not found in the store";
-                    else instanceR.clientResponse = "Successfully deleted the key " + operation.key;
+                if (instance.chosen != null) lsn = log.append(WriteAheadLog.CHOSEN, instance.round, 0, instance.chosen);
+            }
+        } finally {
+            acceptorLock.unlock();
+        }
+        log.sync(lsn);
+        log.deleteBefore(start);
+    }
+
+    // a stored or received snapshot, from its file or from memory
+    private DataInputStream openSnapshot(Path file, byte[] bytes) throws IOException {
+        InputStream in = file != null ? Files.newInputStream(file) : new ByteArrayInputStream(bytes);
+        return new DataInputStream(new BufferedInputStream(in));
+    }
+
+    // this server is behind the compacted logs of its peers, take the newest snapshot one of them has
+    private void installSnapshot() {
+        for (int i = 0; i < learners.length; i++) {
+            if (hasSnapshotFor(i) && installSnapshot(i)) return;
+        }
+    }
+
+    /**
+     * Copy the peer's latest snapshot a chunk at a time, to a file in snapshotDir or to memory without one, and
+     * install it.
+     *
+     * @return Whether the peer had a snapshot past this server's round, false too if it failed or another copy runs.
+     */
+    private boolean installSnapshot(int peerId) {
+        if (!receiveLock.tryLock()) return false;
+        try {
+            Path incoming = snapshotDir == null ? null : snapshotDir.resolve(SNAPSHOT_INCOMING);
+            ByteArrayOutputStream memory = snapshotDir == null ? new ByteArrayOutputStream() : null;
+            try (FileChannel file = incoming == null ? null : FileChannel.open(incoming, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                int round = 0;
+                long offset = 0;
+                while (true) {
+                    SnapshotChunk chunk = learners[peerId].fetchSnapshot(round, offset, SNAPSHOT_CHUNK);
+                    if (chunk.round <= paxosRound) return false;
+                    if (chunk.round != round) {
+                        // the first chunk, or the peer stored a newer snapshot meanwhile
+                        round = chunk.round;
+                        offset = 0;
+                        if (file != null) file.truncate(0);
+                        else memory.reset();
+                    }
+                    if (chunk.offset != offset) throw new IOException("snapshot chunk at " + chunk.offset + ", expected " + offset);
+                    if (file != null) {
+                        ByteBuffer bytes = ByteBuffer.wrap(chunk.bytes);
+                        while (bytes.hasRemaining()) file.write(bytes, offset + bytes.position());
+                    } else {
+                        memory.write(chunk.bytes);
+                    }
+                    offset += chunk.bytes.length;
+                    if (chunk.isLast()) break;
+                    if (chunk.bytes.length == 0) throw new IOException("empty snapshot chunk at " + offset);
                 }
-                case "GET" -> {
-                    String result = kvStore.get(operation.key);
-                    if (result == null) instanceR.clientResponse = "Key " + operation.key + " Not found in the store";
-                    else instanceR.clientResponse = "The value of key " + operation.key + " is " + result;
+                if (file != null) file.force(false);
+            }
+            return installSnapshot(incoming, memory != null ? memory.toByteArray() : null);
+        } catch (IOException e) {
+            System.out.println("cannot copy snapshot of server " + peerId + " to server " + serverId + ": " + e.getMessage());
+            return false;
+        } finally {
+            receiveLock.unlock();
+        }
+    }
+
+    // whether the peer's snapshots can seed this server, a witness's hold no data and only seed other witnesses
+    private boolean hasSnapshotFor(int peerId) {
+        return learners[peerId] != null && (witness || !isWitness(peerId));
+    }
+
+    // install a copied snapshot from its file or from memory, false if this server got past it meanwhile
+    private boolean installSnapshot(Path file, byte[] bytes) throws IOException {
+        int round;
+        try (DataInputStream in = openSnapshot(file, bytes)) {
+            Snapshot snapshot = Snapshot.readHeader(in);
+            round = snapshot.round;
+            writeLock.lock();
+            try {
+                if (snapshot.round <= paxosRound) return false;
+                metrics.snapshotInstalls.increment();
+                if (TRACE) trace("installing snapshot of round " + snapshot.round + " at round " + paxosRound);
+                snapshotPreImages = null;
+                kvStore.clear();
+                configs = List.copyOf(snapshot.configs);
+                witness = isWitness(serverId);
+                if (!witness) {
+                    try {
+                        kvStore.readSnapshot(in);
+                    } catch (IOException e) {
+                        // the copy was complete, so the disk failed; the store is half loaded and no round may be
+                        // applied on top of it, this server stops like a crashed one
+                        serviceDown = true;
+                        throw new UncheckedIOException(e);
+                    }
+                    loadSessions(snapshot.sessions);
+                } else {
+                    sessions.clear();
                 }
-                default -> throw new IllegalArgumentException("Unknown operation type: " + operation.type);
+                paxosRound = snapshot.round;
+                seeRound(snapshot.round - 1);
+                instances.removeBefore(snapshot.round, instance -> {
+                    // wake up local proposers of skipped rounds, their outcome is folded into the snapshot
+                    synchronized (instance) {
+                        if (instance.status != 1) {
+                            instance.status = 2;
+                            instance.notifyAll();
+                        }
+                    }
+                });
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        storeAndCompact(round, file, bytes);
+        applyCommitted();
+        return true;
+    }
+
+    /**
+     * Apply the given operation to the key-value store, needs writeLock.
+     *
+     * @param operation The operation to apply.
+     */
+    private void applyOperation(int round, Operation operation) {
+        PaxosInstance instanceR = instances.get(round);
+        if (instanceR == null || operation == null) {
+            if(operation == null) throw new IllegalStateException("Operation is null");
+            throw new IllegalStateException("not have this round " + round + "this round is " + paxosRound);
+        }
+        // if already settled, nothing to do
+        if (instanceR.status != 0) return;
+
+        // wrap up current paxos instance
+        instanceR.status = 1;
+        paxosRound++;
+        if (instanceR.chosenNanos != 0) metrics.apply.record(System.nanoTime() - instanceR.chosenNanos);
+        if (TRACE) trace(tag(round, operation) + "applied");
+
+        if (operation.type == Operation.BATCH) {
+            // the whole batch is applied in this one round, every command answers its own caller
+            for (Operation command : operation.batch) {
+                respond(command, executeOnce(command));
             }
-            return instanceR.clientResponse;
+        } else {
+            respond(operation, executeOnce(operation));
+        }
+    }
+
+    // what the local proposer of a settled round returns, needs the instance monitor
+    private static Result settledResult(PaxosInstance instance) {
+        return instance.status == 2 ? Result.failed(Result.ErrorCode.OUTCOME_UNKNOWN) : null;
+    }
+
+    // run a client command unless its session shows it was applied before, then repeat the earlier response
+    private Result executeOnce(Operation operation) {
+        // a witness keeps no data and no sessions, nobody waits on it for a result
+        if (witness) return operation.type == Operation.CONFIG ? execute(operation) : null;
+        if (operation.clientId == 0) return execute(operation);
+        ClientSession session = sessions.remove(operation.clientId);
+        if (session == null) session = new ClientSession();
+        sessions.put(operation.clientId, session);
+        session.acknowledge(operation.ackSeq);
+        Result cached = session.responses.get(operation.seq);
+        if (cached != null) return cached;
+        // the client already got the response and moved on, the command is not run again
+        if (operation.seq < session.ackSeq) return Result.failed(Result.ErrorCode.ALREADY_ANSWERED);
+        Result response = execute(operation);
+        session.responses.put(operation.seq, response);
+        return response;
+    }
+
+    // response of a client command that was applied already, null if it wasn't
+    private Result cachedResponse(Operation operation) {
+        if (operation.clientId == 0) return null;
+        writeLock.lock();
+        try {
+            ClientSession session = sessions.get(operation.clientId);
+            return session == null ? null : session.responses.get(operation.seq);
         } finally {
             writeLock.unlock();
         }
+    }
+
+    // deep copy of the session table in its access order, needs writeLock
+    private Map<Long, ClientSession> copySessions() {
+        Map<Long, ClientSession> copy = new LinkedHashMap<>(sessions.size() * 2);
+        for (Map.Entry<Long, ClientSession> entry : sessions.entrySet()) copy.put(entry.getKey(), entry.getValue().copy());
+        return copy;
+    }
+
+    // replace the session table with the one of a snapshot, needs writeLock
+    private void loadSessions(Map<Long, ClientSession> snapshotSessions) {
+        sessions.clear();
+        for (Map.Entry<Long, ClientSession> entry : snapshotSessions.entrySet()) sessions.put(entry.getKey(), entry.getValue().copy());
+    }
+
+    // heap engine by default, with a sorted index for scans; the mapped one keeps its files under the data directory
+    // or in a temporary one, and scans without an index so it never holds every key on the heap
+    private KVStoreInterface createStore(String engine) throws RemoteException {
+        switch (engine) {
+            case "heap" -> {
+                return new OrderedKVStore(new HeapKVStore());
+            }
+            case "mapped" -> {
+                try {
+                    Path dir = dataDir != null ? dataDir.resolve("store") : Files.createTempDirectory("paxos-store-" + serverId);
+                    return new MappedKVStore(dir);
+                } catch (IOException | UncheckedIOException e) {
+                    throw new RemoteException("cannot create store of server " + serverId, e);
+                }
+            }
+            default -> throw new IllegalArgumentException("Unknown store engine: " + engine);
+        }
+    }
+
+    // run a single command against the key-value store
+    private Result execute(Operation operation) {
+        switch (operation.type) {
+            case Operation.PUT -> {
+                rememberPreImage(operation.key);
+                kvStore.put(operation.key, operation.value);
+                return Result.ok();
+            }
+            case Operation.DELETE -> {
+                rememberPreImage(operation.key);
+                return kvStore.delete(operation.key) ? Result.ok() : Result.notFound();
+            }
+            case Operation.GET -> {
+                return Result.value(kvStore.get(operation.key));
+            }
+            case Operation.MGET -> {
+                byte[][] values = new byte[operation.batch.size()][];
+                for (int i = 0; i < values.length; i++) values[i] = kvStore.get(operation.batch.get(i).key);
+                return Result.values(values);
+            }
+            case Operation.SCAN -> {
+                return scan(operation);
+            }
+            case Operation.MPUT -> {
+                for (Operation put : operation.batch) execute(put);
+                return Result.ok();
+            }
+            case Operation.TXN -> {
+                for (Operation part : operation.batch) {
+                    if (part.type != Operation.CHECK) break;
+                    if (!Arrays.equals(kvStore.get(part.key), part.value)) {
+                        return Result.failed(Result.ErrorCode.CONDITION_FAILED);
+                    }
+                }
+                for (Operation part : operation.batch) {
+                    if (part.type != Operation.CHECK) execute(part);
+                }
+                return Result.ok();
+            }
+            case Operation.NOOP -> {
+                return Result.ok();
+            }
+            case Operation.CONFIG -> {
+                return changeMembers(operation) ? Result.ok() : Result.failed(Result.ErrorCode.INVALID_INPUT);
+            }
+            default -> throw new IllegalArgumentException("Unknown operation type: " + operation.type);
+        }
+    }
+
+    // one past the limit is fetched to learn where the next page starts
+    private Result scan(Operation operation) {
+        List<byte[]> keys = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        // the limit is cut to MAX_SCAN_LIMIT already, the add saturates anyway
+        int fetch = Math.min(operation.limit, Integer.MAX_VALUE - 1) + 1;
+        kvStore.scan(operation.key, operation.value, fetch, (key, value) -> {
+            keys.add(key);
+            values.add(value);
+        });
+        byte[] next = null;
+        if (keys.size() > operation.limit) {
+            next = keys.remove(operation.limit);
+            values.remove(operation.limit);
+        }
+        return Result.entries(keys.toArray(new byte[0][]), values.toArray(new byte[0][]), next);
+    }
 
+    // hand the result to the local caller waiting for this command, if any
+    private void respond(Operation operation, Result response) {
+        PendingCommand command = pending.remove(operation.id);
+        if (command != null) command.result.complete(response);
     }
 
 
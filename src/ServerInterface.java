@@ -3,5 +3,14 @@ import java.rmi.RemoteException;
 
 public interface ServerInterface extends Remote {
     // client input command string and return result
-    String sendCommand(Operation operation) throws RemoteException;
+    Result sendCommand(Operation operation) throws RemoteException;
+
+    // read a key without a paxos round, stale reads skip the quorum check and may miss recent writes
+    Result read(byte[] key, boolean stale) throws RemoteException;
+
+    // like read for a GET, MGET or SCAN, multi-key reads see all their keys as of the same round
+    Result query(Operation query, boolean stale) throws RemoteException;
+
+    // latencies, counters and gauges of the server as text, see PaxosMetrics
+    String dumpMetrics() throws RemoteException;
 }
@@ -0,0 +1,57 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of keys onto Paxos groups. Every group owns many points on a hash ring and a key belongs to
+ * the group of the first point at or after the key's hash, so adding a group later only moves the keys that land
+ * on its new points.
+ */
+public class ShardRouter {
+    // points per group, evens out the share of the ring each group gets
+    private static final int VIRTUAL_NODES = 128;
+
+    private final int numGroups;
+    private final TreeMap<Integer, Integer> ring = new TreeMap<>();
+
+    public ShardRouter(int numGroups) {
+        if (numGroups < 1) throw new IllegalArgumentException("numGroups must be at least 1");
+        this.numGroups = numGroups;
+        for (int group = 0; group < numGroups; group++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring.put(hash(("group-" + group + "#" + v).getBytes(StandardCharsets.UTF_8)), group);
+            }
+        }
+    }
+
+    public int numGroups() {
+        return numGroups;
+    }
+
+    /**
+     * The group a key belongs to.
+     *
+     * @param key The key of an operation.
+     */
+    public int groupOf(byte[] key) {
+        if (numGroups == 1) return 0;
+        Map.Entry<Integer, Integer> point = ring.ceilingEntry(hash(key));
+        if (point == null) point = ring.firstEntry();
+        return point.getValue();
+    }
+
+    // FNV-1a with a final avalanche, Arrays.hashCode clusters similar keys too much
+    private static int hash(byte[] bytes) {
+        int h = 0x811c9dc5;
+        for (byte b : bytes) {
+            h ^= b;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
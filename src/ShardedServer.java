@@ -0,0 +1,259 @@
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * One node of a sharded key-value store. The keyspace is split by ShardRouter into independent Paxos groups, and
+ * this node runs one Server replica per group, each with its own log, ballots and leader. Group g prefers node
+ * g % numServers as its proposer, so commands are forwarded there and the leaders of the groups end up spread over
+ * the nodes. If the preferred node can't be reached the command is proposed locally.
+ * An MPUT or TXN is atomic within one group only, so all its keys must belong to the same group. MGET and SCAN
+ * may span groups, they read every group's local replica and see each group as of its own round.
+ * A CONFIG changes the members of every group, one group after the other.
+ */
+public class ShardedServer extends UnicastRemoteObject implements ServerInterface {
+    private final int nodeId;
+    private final int numServers;
+    private final ShardRouter router;
+    // replica of every group on this node, by group id
+    private final Server[] groups;
+    // the other nodes, null at this node's own index
+    private ServerInterface[] peers;
+
+    private volatile boolean serviceDown;
+
+    /**
+     * Constructor to create a ShardedServer instance with one replica per group.
+     *
+     * @param nodeId          The unique ID of this node.
+     * @param numServers      The total number of nodes.
+     * @param numGroups       The number of Paxos groups the keyspace is split into.
+     * @param maxInFlight     The number of rounds each group may propose concurrently.
+     * @param maxBatchSize    The most client commands packed into one round.
+     * @param maxBatchDelayMs How long a batch waits to fill up before it is proposed.
+     * @param dataDir         Directory for the groups' logs and snapshots, null to keep them in memory.
+     */
+    public ShardedServer(int nodeId, int numServers, int numGroups, int maxInFlight, int maxBatchSize,
+                         long maxBatchDelayMs, Path dataDir) throws RemoteException {
+        this(nodeId, numServers, (Configuration) null, numGroups, maxInFlight, maxBatchSize, maxBatchDelayMs, dataDir);
+    }
+
+    /**
+     * Constructor to create a ShardedServer instance with one replica per group.
+     *
+     * @param nodeId          The unique ID of this node.
+     * @param numServers      The number of node ids, see Server.
+     * @param members         The nodes that vote in every group from round 0 on, null for all of them.
+     * @param numGroups       The number of Paxos groups the keyspace is split into.
+     * @param maxInFlight     The number of rounds each group may propose concurrently.
+     * @param maxBatchSize    The most client commands packed into one round.
+     * @param maxBatchDelayMs How long a batch waits to fill up before it is proposed.
+     * @param dataDir         Directory for the groups' logs and snapshots, null to keep them in memory.
+     */
+    public ShardedServer(int nodeId, int numServers, int[] members, int numGroups, int maxInFlight, int maxBatchSize,
+                         long maxBatchDelayMs, Path dataDir) throws RemoteException {
+        this(nodeId, numServers, members == null ? null : new Configuration(0, members), numGroups, maxInFlight,
+                maxBatchSize, maxBatchDelayMs, dataDir);
+    }
+
+    /**
+     * Constructor to create a ShardedServer instance with one replica per group.
+     *
+     * @param nodeId          The unique ID of this node.
+     * @param numServers      The number of node ids, see Server.
+     * @param config          Who votes in every group from round 0 on, with witnesses and quorum sizes, null for
+     *                        all nodes with majorities.
+     * @param numGroups       The number of Paxos groups the keyspace is split into.
+     * @param maxInFlight     The number of rounds each group may propose concurrently.
+     * @param maxBatchSize    The most client commands packed into one round.
+     * @param maxBatchDelayMs How long a batch waits to fill up before it is proposed.
+     * @param dataDir         Directory for the groups' logs and snapshots, null to keep them in memory.
+     */
+    public ShardedServer(int nodeId, int numServers, Configuration config, int numGroups, int maxInFlight,
+                         int maxBatchSize, long maxBatchDelayMs, Path dataDir) throws RemoteException {
+        this.nodeId = nodeId;
+        this.numServers = numServers;
+        this.router = new ShardRouter(numGroups);
+        this.groups = new Server[numGroups];
+        for (int g = 0; g < numGroups; g++) {
+            Path groupDir = dataDir == null ? null : dataDir.resolve("group-" + g);
+            groups[g] = config == null
+                    ? new Server(nodeId, numServers, maxInFlight, maxBatchSize, maxBatchDelayMs, groupDir)
+                    : new Server(nodeId, numServers, config, maxInFlight, maxBatchSize, maxBatchDelayMs, groupDir);
+        }
+    }
+
+    /**
+     * The replica of a group on this node, to wire it up with the other replicas of the group.
+     *
+     * @param group The group id.
+     */
+    public Server group(int group) {
+        return groups[group];
+    }
+
+    public int numGroups() {
+        return groups.length;
+    }
+
+    /**
+     * Set the other nodes, commands go to them when they are the preferred proposer of the key's group.
+     *
+     * @param peers The nodes by id, null at this node's own index.
+     */
+    public void setPeers(ServerInterface[] peers) {
+        this.peers = peers;
+    }
+
+    /**
+     * Simulate this node going down or coming back, affects the replicas of all groups.
+     *
+     * @param serviceDown Whether the node is down.
+     */
+    public void setServiceDown(boolean serviceDown) {
+        this.serviceDown = serviceDown;
+        for (Server group : groups) group.serviceDown = serviceDown;
+    }
+
+    /**
+     * Run the operation in the group of its key, on the group's preferred node if possible.
+     *
+     * @param operation The operation to be proposed.
+     */
+    @Override
+    public Result sendCommand(Operation operation) throws RemoteException {
+        if (serviceDown) throw new RemoteException("target server is down");
+        if (!operation.isValidCommand()) return Result.failed(Result.ErrorCode.INVALID_INPUT);
+        if (operation.type == Operation.MGET || operation.type == Operation.SCAN) return query(operation, false);
+        if (operation.type == Operation.CONFIG) {
+            // straight to the local replicas, a peer node would run it in all groups again; each replica passes
+            // it on to its group's leader. Every group gets its own copy, a replica stamps the id from its counter
+            // and the groups' counters overlap
+            for (Server group : groups) {
+                Result result = group.sendCommand(operation.unstamped());
+                if (result.status() != Result.Status.OK) return result;
+            }
+            return Result.ok();
+        }
+        int group = groupOf(operation);
+        if (group < 0) return Result.failed(Result.ErrorCode.CROSS_GROUP);
+        return sendToGroup(group, operation);
+    }
+
+    // run the command in one group, on the group's preferred node if possible
+    private Result sendToGroup(int group, Operation operation) throws RemoteException {
+        int preferred = group % numServers;
+        if (preferred != nodeId && peers != null && peers[preferred] != null) {
+            try {
+                return peers[preferred].sendCommand(operation);
+            } catch (RemoteException e) {
+                // preferred node is unreachable, any replica can propose
+                System.out.println(e.getMessage());
+            }
+        }
+        return groups[group].sendCommand(operation);
+    }
+
+    /**
+     * Read from the local replica of the key's group, see Server.read.
+     *
+     * @param key   The key to read.
+     * @param stale Whether a possibly outdated value is good enough.
+     */
+    @Override
+    public Result read(byte[] key, boolean stale) throws RemoteException {
+        if (serviceDown) throw new RemoteException("target server is down");
+        return groups[router.groupOf(key)].read(key, stale);
+    }
+
+    /**
+     * Run a GET, MGET or SCAN on the local replicas of the groups it touches and merge what they return.
+     *
+     * @param query The read to run.
+     * @param stale Whether a possibly outdated view is good enough.
+     */
+    @Override
+    public Result query(Operation query, boolean stale) throws RemoteException {
+        if (serviceDown) throw new RemoteException("target server is down");
+        if (!query.isRead() || !query.isValidCommand()) return Result.failed(Result.ErrorCode.INVALID_INPUT);
+        if (query.type == Operation.GET) return read(query.key, stale);
+        if (query.type == Operation.MGET) return multiGet(query, stale);
+        return scan(query, stale);
+    }
+
+    /**
+     * The metrics of every group's replica on this node, one block per group.
+     */
+    @Override
+    public String dumpMetrics() throws RemoteException {
+        if (serviceDown) throw new RemoteException("target server is down");
+        StringBuilder sb = new StringBuilder();
+        for (int g = 0; g < groups.length; g++) {
+            sb.append("group ").append(g).append(", ").append(groups[g].dumpMetrics());
+        }
+        return sb.toString();
+    }
+
+    // one MGET per group, the values are put back in the order of the keys
+    private Result multiGet(Operation query, boolean stale) throws RemoteException {
+        List<List<Integer>> positions = new ArrayList<>(groups.length);
+        for (int g = 0; g < groups.length; g++) positions.add(new ArrayList<>());
+        for (int i = 0; i < query.batch.size(); i++) positions.get(router.groupOf(query.batch.get(i).key)).add(i);
+        byte[][] values = new byte[query.batch.size()][];
+        for (int g = 0; g < groups.length; g++) {
+            List<Integer> mine = positions.get(g);
+            if (mine.isEmpty()) continue;
+            List<byte[]> keys = new ArrayList<>(mine.size());
+            for (int i : mine) keys.add(query.batch.get(i).key);
+            Result result = groups[g].query(Operation.mget(keys), stale);
+            if (result.status() == Result.Status.FAILED) return result;
+            for (int j = 0; j < mine.size(); j++) values[mine.get(j)] = result.values()[j];
+        }
+        return Result.values(values);
+    }
+
+    // every group holds part of the range, a page is the smallest keys over all of them
+    private Result scan(Operation query, boolean stale) throws RemoteException {
+        TreeMap<ByteKey, byte[]> merged = new TreeMap<>();
+        ByteKey next = null;
+        for (Server group : groups) {
+            Result result = group.query(query, stale);
+            if (result.status() == Result.Status.FAILED) return result;
+            for (int i = 0; i < result.keys().length; i++) merged.put(new ByteKey(result.keys()[i]), result.values()[i]);
+            // the group has more, but nothing it returned goes past this key
+            if (result.next() != null) {
+                ByteKey groupNext = new ByteKey(result.next());
+                if (next == null || groupNext.compareTo(next) < 0) next = groupNext;
+            }
+        }
+        if (next != null) merged.tailMap(next, true).clear();
+        if (merged.size() > query.limit) {
+            next = merged.keySet().stream().skip(query.limit).findFirst().orElseThrow();
+            merged.tailMap(next, true).clear();
+        }
+        byte[][] keys = new byte[merged.size()][];
+        byte[][] values = new byte[merged.size()][];
+        int i = 0;
+        for (Map.Entry<ByteKey, byte[]> entry : merged.entrySet()) {
+            keys[i] = entry.getKey().bytes;
+            values[i++] = entry.getValue();
+        }
+        return Result.entries(keys, values, next == null ? null : next.bytes);
+    }
+
+    // group of every key the operation touches, -1 if they are in more than one
+    private int groupOf(Operation operation) {
+        if (operation.key != null) return router.groupOf(operation.key);
+        int group = -1;
+        for (Operation part : operation.batch) {
+            int partGroup = router.groupOf(part.key);
+            if (group >= 0 && partGroup != group) return -1;
+            group = partGroup;
+        }
+        return group;
+    }
+}
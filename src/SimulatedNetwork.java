@@ -0,0 +1,277 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * In-process network for PaxosSimulation. The servers call each other through links that add latency, lose
+ * messages and respect partitions, and a server can be crashed and restarted from its write-ahead log. Every link
+ * draws from its own random stream split off the seed, so the same seed makes the same choices per link; thread
+ * timing still decides which call gets which draw.
+ */
+public class SimulatedNetwork {
+    // how long a lost message keeps the caller waiting before the call fails, like a transport timeout
+    private static final long LOST_MESSAGE_MS = 500;
+
+    private final int numServers;
+    private final Configuration config;
+    private final Path dataRoot;
+    private final int snapshotInterval;
+    private final SplittableRandom random;
+    // current incarnation of every server, links set up by an older one are dead
+    private final AtomicReferenceArray<Server> servers;
+    private final boolean[] crashed;
+    // side of the partition every server is on, servers on different sides can't reach each other
+    private volatile int[] sides;
+    // one way, every call pays it twice
+    private volatile long latencyMs;
+    private volatile long jitterMs;
+    private volatile double dropRate;
+
+    /**
+     * Constructor to create a SimulatedNetwork with one running server per member id.
+     *
+     * @param numServers       The number of server ids, all of them are started.
+     * @param config           Who votes from round 0 on, see Server.
+     * @param snapshotInterval Applied rounds between two snapshots of every server.
+     * @param seed             Seed of the latency and loss draws.
+     */
+    public SimulatedNetwork(int numServers, Configuration config, int snapshotInterval, long seed) throws IOException {
+        this.numServers = numServers;
+        this.config = config;
+        this.snapshotInterval = snapshotInterval;
+        this.random = new SplittableRandom(seed);
+        this.dataRoot = Files.createTempDirectory("paxos-simulation-");
+        servers = new AtomicReferenceArray<>(numServers);
+        crashed = new boolean[numServers];
+        sides = new int[numServers];
+        for (int id = 0; id < numServers; id++) servers.set(id, createServer(id));
+        for (int id = 0; id < numServers; id++) wire(id);
+    }
+
+    public int numServers() {
+        return numServers;
+    }
+
+    // holds a directory per server with its write-ahead log and snapshot
+    public Path dataRoot() {
+        return dataRoot;
+    }
+
+    // the server clients talk to, a crashed one refuses every call
+    public Server server(int id) {
+        return servers.get(id);
+    }
+
+    public synchronized boolean isCrashed(int id) {
+        return crashed[id];
+    }
+
+    /**
+     * Set the delay of every message.
+     *
+     * @param latencyMs One-way latency in milliseconds.
+     * @param jitterMs  Up to this much more, drawn per message.
+     */
+    public void setLatency(long latencyMs, long jitterMs) {
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+    }
+
+    public long latencyMs() {
+        return latencyMs;
+    }
+
+    // share of requests and replies that get lost
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    /**
+     * Split the servers, only servers with the same side number reach each other.
+     *
+     * @param sides Side of every server by id.
+     */
+    public void partition(int[] sides) {
+        this.sides = sides.clone();
+    }
+
+    // every server reaches every other again
+    public void heal() {
+        sides = new int[numServers];
+    }
+
+    // stop the server, its state survives in its write-ahead log
+    public synchronized void crash(int id) {
+        crashed[id] = true;
+        servers.get(id).serviceDown = true;
+    }
+
+    // start the server again from its write-ahead log and snapshot, the old incarnation lets go of its log and
+    // metrics name first
+    public synchronized void restart(int id) throws RemoteException {
+        if (!crashed[id]) return;
+        servers.get(id).shutdown();
+        servers.set(id, createServer(id));
+        crashed[id] = false;
+        wire(id);
+    }
+
+    // the server holding the leader ballot, -1 if none is up
+    public int leader() {
+        for (int id = 0; id < numServers; id++) {
+            if (isCrashed(id)) continue;
+            Long ballot = servers.get(id).getMetrics().getGauges().get("leaderBallot");
+            if (ballot != null && ballot != 0) return id;
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "latency " + latencyMs + "+" + jitterMs + "ms, drop rate " + dropRate + ", sides " + Arrays.toString(sides);
+    }
+
+    private Server createServer(int id) throws RemoteException {
+        Server server = new Server(id, numServers, config, Server.DEFAULT_MAX_IN_FLIGHT, Server.DEFAULT_MAX_BATCH_SIZE,
+                Server.DEFAULT_MAX_BATCH_DELAY_MS, dataRoot.resolve("server-" + id));
+        server.setSnapshotInterval(snapshotInterval);
+        return server;
+    }
+
+    // give the current incarnation of a server links to all the others
+    private void wire(int id) {
+        Server sender = servers.get(id);
+        AcceptorInterface[] acceptors = new AcceptorInterface[numServers];
+        LearnerInterface[] learners = new LearnerInterface[numServers];
+        for (int to = 0; to < numServers; to++) {
+            if (to == id) continue;
+            Link link = new Link(id, to, sender, random.split());
+            acceptors[to] = link;
+            learners[to] = link;
+        }
+        sender.setAcceptors(acceptors);
+        sender.setLearners(learners);
+    }
+
+    // a call to one server
+    private interface Call<T> {
+        T call(Server server) throws RemoteException;
+    }
+
+    /**
+     * One direction between two servers, set up by one incarnation of the sender. Delivers the request and the
+     * reply after the latency each, unless the servers are on different sides or the message gets lost.
+     */
+    private class Link implements AcceptorInterface, LearnerInterface, LeaderInterface {
+        private final int from;
+        private final int to;
+        // the incarnation of from that set the link up
+        private final Server sender;
+        private final SplittableRandom random;
+
+        Link(int from, int to, Server sender, SplittableRandom random) {
+            this.from = from;
+            this.to = to;
+            this.sender = sender;
+            this.random = random;
+        }
+
+        private <T> T deliver(Call<T> call) throws RemoteException {
+            boolean lostRequest;
+            boolean lostReply;
+            long requestDelay;
+            long replyDelay;
+            synchronized (random) {
+                lostRequest = random.nextDouble() < dropRate;
+                lostReply = random.nextDouble() < dropRate;
+                requestDelay = delay();
+                replyDelay = delay();
+            }
+            // a restarted server's old threads talk into the void
+            if (servers.get(from) != sender) throw new RemoteException("server " + from + " was restarted");
+            if (sides[from] != sides[to] || lostRequest) {
+                sleep(LOST_MESSAGE_MS);
+                throw new RemoteException("message from " + from + " to " + to + " lost");
+            }
+            sleep(requestDelay);
+            T reply = call.call(servers.get(to));
+            if (sides[from] != sides[to] || lostReply) {
+                sleep(LOST_MESSAGE_MS);
+                throw new RemoteException("reply from " + to + " to " + from + " lost");
+            }
+            sleep(replyDelay);
+            return reply;
+        }
+
+        // needs the random monitor
+        private long delay() {
+            long jitter = jitterMs;
+            return latencyMs + (jitter > 0 ? random.nextLong(jitter + 1) : 0);
+        }
+
+        private void sleep(long ms) throws RemoteException {
+            if (ms <= 0) return;
+            try {
+                Thread.sleep(ms);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("interrupted in the network");
+            }
+        }
+
+        @Override
+        public PromiseMsg promise(int round, int proposalId) throws RemoteException {
+            return deliver(server -> server.promise(round, proposalId));
+        }
+
+        @Override
+        public AcceptReply accept(int round, int proposalId, Operation proposalValue) throws RemoteException {
+            return deliver(server -> server.accept(round, proposalId, proposalValue));
+        }
+
+        @Override
+        public int maxAcceptedRound() throws RemoteException {
+            return deliver(Server::maxAcceptedRound);
+        }
+
+        @Override
+        public void learn(int round, int proposalId, Operation acceptedValue) throws RemoteException {
+            deliver(server -> {
+                server.learn(round, proposalId, acceptedValue);
+                return null;
+            });
+        }
+
+        @Override
+        public void learnChosen(int fromRound, Operation[] values) throws RemoteException {
+            deliver(server -> {
+                server.learnChosen(fromRound, values);
+                return null;
+            });
+        }
+
+        @Override
+        public CatchUpReply fetchChosen(int fromRound, int maxRounds) throws RemoteException {
+            return deliver(server -> server.fetchChosen(fromRound, maxRounds));
+        }
+
+        @Override
+        public SnapshotChunk fetchSnapshot(int round, long offset, int maxBytes) throws RemoteException {
+            return deliver(server -> server.fetchSnapshot(round, offset, maxBytes));
+        }
+
+        @Override
+        public int heartbeat(int ballot) throws RemoteException {
+            return deliver(server -> server.heartbeat(ballot));
+        }
+
+        @Override
+        public Result forwardCommand(Operation operation) throws RemoteException {
+            return deliver(server -> server.forwardCommand(operation));
+        }
+    }
+}
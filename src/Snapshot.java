@@ -0,0 +1,112 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Point-in-time copy of the state machine, holds the effect of every round before round. Stored and sent as
+ * [int round][sessions][configs][entries], where entries are [int keyLength][key][int valueLength][value] ending
+ * with a keyLength of -1. The store streams the entries itself (see KVStoreInterface.writeSnapshot), so only the
+ * part before them is ever held here and a snapshot never has to fit on the heap.
+ */
+public class Snapshot {
+    // value of a key that had none when the snapshot was captured
+    static final byte[] ABSENT = new byte[0];
+
+    // first round not contained in the snapshot
+    int round;
+    // client sessions by client id, least recently used first
+    Map<Long, ClientSession> sessions;
+    // every configuration up to the ones starting after round, see Server.configs
+    List<Configuration> configs;
+
+    public Snapshot(int round, Map<Long, ClientSession> sessions, List<Configuration> configs){
+        this.round = round;
+        this.sessions = sessions;
+        this.configs = configs;
+    }
+
+    // everything before the entries
+    public void writeHeader(DataOutput out) throws IOException {
+        out.writeInt(round);
+        out.writeInt(sessions.size());
+        for (Map.Entry<Long, ClientSession> entry : sessions.entrySet()) {
+            out.writeLong(entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+        out.writeInt(configs.size());
+        for (Configuration config : configs) {
+            out.writeInt(config.fromRound);
+            writeIds(out, config.members);
+            writeIds(out, config.witnesses);
+            out.writeInt(config.q1);
+            out.writeInt(config.q2);
+        }
+    }
+
+    // read everything before the entries, in is left at the first one
+    public static Snapshot readHeader(DataInput in) throws IOException {
+        int round = in.readInt();
+        int numSessions = in.readInt();
+        Map<Long, ClientSession> sessions = new LinkedHashMap<>();
+        for (int i = 0; i < numSessions; i++) {
+            sessions.put(in.readLong(), ClientSession.readFrom(in));
+        }
+        int numConfigs = in.readInt();
+        List<Configuration> configs = new ArrayList<>();
+        for (int i = 0; i < numConfigs; i++) {
+            int fromRound = in.readInt();
+            int[] members = readIds(in);
+            int[] witnesses = readIds(in);
+            configs.add(new Configuration(fromRound, members, witnesses, in.readInt(), in.readInt()));
+        }
+        return new Snapshot(round, sessions, configs);
+    }
+
+    public static void writeEntry(DataOutput out, byte[] key, byte[] value) throws IOException {
+        writeBytes(out, key);
+        writeBytes(out, value);
+    }
+
+    // after the last entry
+    public static void writeEnd(DataOutput out) throws IOException {
+        out.writeInt(-1);
+    }
+
+    // hand every entry up to the end mark to action; a key may come more than once, always with the same value
+    public static void readEntries(DataInput in, BiConsumer<byte[], byte[]> action) throws IOException {
+        while (true) {
+            int keyLength = in.readInt();
+            if (keyLength < 0) return;
+            byte[] key = new byte[keyLength];
+            in.readFully(key);
+            action.accept(key, readBytes(in));
+        }
+    }
+
+    private static void writeIds(DataOutput out, int[] ids) throws IOException {
+        out.writeInt(ids.length);
+        for (int id : ids) out.writeInt(id);
+    }
+
+    private static int[] readIds(DataInput in) throws IOException {
+        int[] ids = new int[in.readInt()];
+        for (int i = 0; i < ids.length; i++) ids[i] = in.readInt();
+        return ids;
+    }
+
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
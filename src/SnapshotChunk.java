@@ -0,0 +1,23 @@
+import java.io.Serializable;
+
+// part of a server's stored snapshot, a snapshot is copied a chunk at a time so it never has to fit in one message
+public class SnapshotChunk implements Serializable {
+    // round of the snapshot the bytes belong to, 0 if the server has none
+    int round;
+    // position of bytes in the stored snapshot
+    long offset;
+    byte[] bytes;
+    // length of the whole stored snapshot
+    long size;
+
+    public SnapshotChunk(int round, long offset, byte[] bytes, long size){
+        this.round = round;
+        this.offset = offset;
+        this.bytes = bytes;
+        this.size = size;
+    }
+
+    boolean isLast() {
+        return offset + bytes.length >= size;
+    }
+}
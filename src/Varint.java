@@ -0,0 +1,74 @@
+import java.nio.ByteBuffer;
+
+// LEB128 style variable-length integers, 7 bits per byte with the high bit set on all but the last byte
+public class Varint {
+    public static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    public static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalArgumentException("varint longer than 10 bytes");
+    }
+
+    public static void putVarInt(ByteBuffer out, int value) {
+        putVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    public static int getVarInt(ByteBuffer in) {
+        return (int) getVarLong(in);
+    }
+
+    // bytes putVarLong writes for the value
+    public static int size(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    // a length-prefixed byte array
+    public static void putBytes(ByteBuffer out, byte[] bytes) {
+        putVarInt(out, bytes.length);
+        out.put(bytes);
+    }
+
+    public static byte[] getBytes(ByteBuffer in) {
+        byte[] bytes = new byte[getVarInt(in)];
+        in.get(bytes);
+        return bytes;
+    }
+
+    public static int sizeOfBytes(byte[] bytes) {
+        return size(bytes.length) + bytes.length;
+    }
+
+    // like putBytes but null is allowed, the length is stored plus one so that 0 means null
+    public static void putNullableBytes(ByteBuffer out, byte[] bytes) {
+        if (bytes == null) {
+            out.put((byte) 0);
+            return;
+        }
+        putVarInt(out, bytes.length + 1);
+        out.put(bytes);
+    }
+
+    public static byte[] getNullableBytes(ByteBuffer in) {
+        int length = getVarInt(in) - 1;
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,228 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented log of acceptor and learner state, so a restarted server keeps its promises.
+ * Every record is [int length][int crc][byte type][int round][int ballot][op], segments are named by the
+ * log position they start at. Writers append, then call sync with the returned position; concurrent syncs
+ * are group committed so one fsync covers everything appended before it.
+ */
+public class WriteAheadLog implements Closeable {
+    // per-instance promise of a ballot
+    public static final byte PROMISE = 1;
+    // one ballot promised for every round >= round
+    public static final byte PROMISE_RANGE = 2;
+    // value accepted with a ballot
+    public static final byte ACCEPT = 3;
+    // value chosen for a round, written by the learner
+    public static final byte CHOSEN = 4;
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final String SUFFIX = ".wal";
+    private static final int HEADER = 8;
+
+    // receives records in log order during replay
+    public interface RecordHandler {
+        void onRecord(byte type, int round, int ballot, Operation operation);
+    }
+
+    private final Path dir;
+    private final long segmentSize;
+
+    // guards the active segment and writtenLsn
+    private final ReentrantLock appendLock = new ReentrantLock();
+    // only one fsync at a time, the others wait and usually find their records already covered
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    private FileChannel channel;
+    private long segmentStart;
+    // log position right after the last appended record
+    private long writtenLsn;
+    // everything before this position is on disk
+    private volatile long syncedLsn;
+
+    private WriteAheadLog(Path dir, long segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Open the log in dir, replay every intact record into handler and get ready to append after them.
+     * A torn record at the tail, left by a crash in the middle of a write, is cut off.
+     */
+    public static WriteAheadLog open(Path dir, long segmentSize, RecordHandler handler) throws IOException {
+        Files.createDirectories(dir);
+        WriteAheadLog log = new WriteAheadLog(dir, segmentSize);
+        List<Long> segments = log.segments();
+        long end = 0;
+        for (long start : segments) {
+            end = start + log.replaySegment(start, handler);
+        }
+        long last = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        log.channel = FileChannel.open(log.segmentPath(last), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        log.channel.truncate(end - last);
+        log.channel.position(end - last);
+        log.segmentStart = last;
+        log.writtenLsn = end;
+        log.syncedLsn = end;
+        return log;
+    }
+
+    /**
+     * Append a record, it is not durable before sync is called with the returned position.
+     *
+     * @return The log position right after the record.
+     */
+    public long append(byte type, int round, int ballot, Operation operation) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(HEADER + 10 + (operation != null ? operation.encodedSize() : 0));
+        record.position(HEADER);
+        record.put(type);
+        record.putInt(round);
+        record.putInt(ballot);
+        record.put((byte) (operation != null ? 1 : 0));
+        if (operation != null) operation.encode(record);
+        record.flip();
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER, record.limit() - HEADER);
+        record.putInt(0, record.limit() - HEADER);
+        record.putInt(4, (int) crc.getValue());
+
+        appendLock.lock();
+        try {
+            while (record.hasRemaining()) channel.write(record);
+            writtenLsn += record.limit();
+            return writtenLsn;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Make everything up to lsn durable. Callers arriving while an fsync runs queue behind it and then
+     * mostly return right away, because that fsync or the next one already covered their records.
+     */
+    public void sync(long lsn) throws IOException {
+        if (syncedLsn >= lsn) return;
+        syncLock.lock();
+        try {
+            if (syncedLsn >= lsn) return;
+            long target;
+            FileChannel active;
+            appendLock.lock();
+            try {
+                target = writtenLsn;
+                active = channel;
+            } finally {
+                appendLock.unlock();
+            }
+            active.force(false);
+            syncedLsn = target;
+            if (target - segmentStart >= segmentSize) roll();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // start a new segment, only called under syncLock so nobody is forcing the old channel
+    private void roll() throws IOException {
+        appendLock.lock();
+        try {
+            channel.force(false);
+            channel.close();
+            segmentStart = writtenLsn;
+            channel = FileChannel.open(segmentPath(segmentStart), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            syncedLsn = writtenLsn;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Force the active segment and continue in a fresh one, used before rewriting live state for compaction.
+     *
+     * @return The position the new segment starts at.
+     */
+    public long startSegment() throws IOException {
+        syncLock.lock();
+        try {
+            roll();
+            return segmentStart;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // drop every segment that starts before start, the records still needed must have been written again after it
+    public void deleteBefore(long start) throws IOException {
+        for (long segment : segments()) {
+            if (segment < start) Files.deleteIfExists(segmentPath(segment));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        syncLock.lock();
+        appendLock.lock();
+        try {
+            channel.force(false);
+            channel.close();
+        } finally {
+            appendLock.unlock();
+            syncLock.unlock();
+        }
+    }
+
+    // start positions of all segments, oldest first
+    private List<Long> segments() throws IOException {
+        List<Long> res = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.endsWith(SUFFIX))
+                    .forEach(name -> res.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length()))));
+        }
+        res.sort(null);
+        return res;
+    }
+
+    private Path segmentPath(long start) {
+        return dir.resolve(String.format("%020d%s", start, SUFFIX));
+    }
+
+    // map the segment read only and hand its records to handler, returns the length of the intact part
+    private long replaySegment(long start, RecordHandler handler) throws IOException {
+        try (FileChannel in = FileChannel.open(segmentPath(start), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= HEADER) {
+                int position = buffer.position();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) return position;
+                // checked and decoded in place in the mapping
+                ByteBuffer record = buffer.slice(buffer.position(), length);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != checksum) return position;
+                buffer.position(buffer.position() + length);
+                byte type = record.get();
+                int round = record.getInt();
+                int ballot = record.getInt();
+                Operation operation = record.get() == 1 ? Operation.decode(record) : null;
+                handler.onRecord(type, round, ballot, operation);
+            }
+            return buffer.position();
+        }
+    }
+}